@@ -1,5 +1,7 @@
 package cn.kivensoft.http;
 
+import com.alibaba.fastjson.annotation.JSONField;
+
 /** web api 通用返回对象
  * @author kiven
  *
@@ -8,6 +10,8 @@ public class ApiResult {
 	private int code;
 	private String msg;
 	private Object data;
+	// 结果的版本号，用于生成ETag，不参与序列化
+	private String version;
 	
 	public ApiResult() {
 		super();
@@ -67,4 +71,14 @@ public class ApiResult {
 	public void setData(Object data) {
 		this.data = data;
 	}
+
+	/** 结果的版本号，启用ETag的映射函数设置后直接用于生成ETag，不需要序列化结果计算 */
+	@JSONField(serialize = false)
+	public String getVersion() {
+		return version;
+	}
+
+	public void setVersion(String version) {
+		this.version = version;
+	}
 }
@@ -0,0 +1,180 @@
+package cn.kivensoft.http;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.Headers;
+
+/** 映射函数的参数绑定链，在映射阶段根据参数注解生成，
+ * 请求时依次从请求参数、路径变量、请求头填充参数数组，只做取值及类型转换，不再使用反射，
+ * 请求内容参数由调用方解析后写入bodyIndex位置
+ * @author kiven lee
+ * @version 1.0
+ */
+final class ArgsBinder {
+	private static final int PATH = 1, HEADER = 2;
+
+	final int argCount;
+	// 请求参数的绑定规则，没有QueryParam参数时为null
+	final QueryParser.Binding query;
+	// 路径变量及请求头的绑定
+	private final Binder[] binders;
+	private final boolean hasPath;
+	final boolean hasHeader;
+	// 请求内容参数的位置，没有时为-1
+	final int bodyIndex;
+	final Class<?> bodyType;
+	private final String desc;
+
+	private ArgsBinder(int argCount, QueryParser.Binding query, Binder[] binders,
+			int bodyIndex, Class<?> bodyType, String desc) {
+		this.argCount = argCount;
+		this.query = query;
+		this.binders = binders;
+		boolean path = false, header = false;
+		for (Binder b : binders) {
+			if (b.kind == PATH) path = true;
+			else header = true;
+		}
+		this.hasPath = path;
+		this.hasHeader = header;
+		this.bodyIndex = bodyIndex;
+		this.bodyType = bodyType;
+		this.desc = desc;
+	}
+
+	/** 根据函数参数的注解生成绑定链
+	 * @param method 映射函数
+	 * @param varNames 映射地址中的路径变量名
+	 * @return 绑定链，函数没有带绑定注解的参数时返回null
+	 * @throws IllegalArgumentException 部分参数没有注解、路径变量不存在或有多个请求内容参数
+	 */
+	static ArgsBinder of(Method method, String[] varNames) {
+		Class<?>[] ps = method.getParameterTypes();
+		Annotation[][] as = method.getParameterAnnotations();
+		List<String> qNames = new ArrayList<String>();
+		List<Class<?>> qTypes = new ArrayList<Class<?>>();
+		List<Integer> qIndexes = new ArrayList<Integer>();
+		List<Object> qDefaults = new ArrayList<Object>();
+		List<Binder> binders = new ArrayList<Binder>();
+		int bodyIndex = -1, annotated = 0;
+		StringBuilder desc = new StringBuilder();
+
+		for (int i = 0; i < ps.length; ++i) {
+			Annotation a = findAnnotation(as[i]);
+			if (a == null) continue;
+			++annotated;
+			if (desc.length() > 0) desc.append(", ");
+			if (a instanceof QueryParam) {
+				QueryParam qp = (QueryParam) a;
+				qNames.add(qp.value());
+				qTypes.add(ps[i]);
+				qIndexes.add(i);
+				qDefaults.add(QueryParser.defaultValue(ps[i], qp.defaultValue()));
+				desc.append("@QueryParam ").append(ps[i].getSimpleName()).append(' ').append(qp.value());
+			}
+			else if (a instanceof PathParam) {
+				String name = ((PathParam) a).value();
+				int vi = indexOf(varNames, name);
+				if (vi < 0) throw new IllegalArgumentException(
+						"path variable {" + name + "} not found in mapping url.");
+				binders.add(new Binder(PATH, i, vi, null, ps[i],
+						QueryParser.defaultValue(ps[i], "")));
+				desc.append("@PathParam ").append(ps[i].getSimpleName()).append(' ').append(name);
+			}
+			else if (a instanceof HeaderParam) {
+				HeaderParam hp = (HeaderParam) a;
+				binders.add(new Binder(HEADER, i, -1, hp.value(), ps[i],
+						QueryParser.defaultValue(ps[i], hp.defaultValue())));
+				desc.append("@HeaderParam ").append(ps[i].getSimpleName()).append(' ').append(hp.value());
+			}
+			else {
+				if (bodyIndex >= 0) throw new IllegalArgumentException(
+						"only one @RequestBody parameter allowed.");
+				bodyIndex = i;
+				desc.append("@RequestBody ").append(ps[i].getSimpleName());
+			}
+		}
+		if (annotated == 0) return null;
+		if (annotated < ps.length) throw new IllegalArgumentException(
+				"all parameters must be annotated when any parameter is annotated.");
+
+		QueryParser.Binding query = null;
+		if (!qNames.isEmpty()) {
+			int n = qNames.size();
+			int[] indexes = new int[n];
+			for (int i = 0; i < n; ++i) indexes[i] = qIndexes.get(i);
+			query = new QueryParser.Binding(qNames.toArray(new String[n]),
+					qTypes.toArray(new Class<?>[n]), indexes, qDefaults.toArray());
+		}
+		return new ArgsBinder(ps.length, query, binders.toArray(new Binder[binders.size()]),
+				bodyIndex, bodyIndex < 0 ? null : ps[bodyIndex], desc.toString());
+	}
+
+	/** 从请求参数、路径变量及请求头填充参数数组，请求内容参数不在这里处理
+	 * @param rawQuery 原始的url请求参数
+	 * @param route 匹配的路由，用于提取路径变量
+	 * @param path 请求路径
+	 * @param headers 请求头
+	 * @param args 参数数组
+	 */
+	void bind(String rawQuery, Router.Route<?> route, String path, Headers headers, Object[] args) {
+		if (query != null) {
+			QueryParser parser = QueryParser.get();
+			try {
+				parser.bind(rawQuery, query, args);
+			}
+			finally {
+				parser.recycle();
+			}
+		}
+		String[] vars = hasPath ? route.variableValues(path) : null;
+		for (int i = 0, n = binders.length; i < n; ++i) {
+			Binder b = binders[i];
+			String value = b.kind == PATH ? vars[b.varIndex] : headers.getFirst(b.name);
+			Object v = QueryParser.convert(b.type, value);
+			args[b.argIndex] = v != null ? v : b.defaultValue;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return desc;
+	}
+
+	private static Annotation findAnnotation(Annotation[] as) {
+		for (Annotation a : as)
+			if (a instanceof QueryParam || a instanceof PathParam
+					|| a instanceof HeaderParam || a instanceof RequestBody)
+				return a;
+		return null;
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; ++i)
+			if (names[i].equals(name)) return i;
+		return -1;
+	}
+
+	/** 单个路径变量或请求头参数的绑定 */
+	private static final class Binder {
+		final int kind;
+		final int argIndex;
+		final int varIndex;
+		final String name;
+		final Class<?> type;
+		final Object defaultValue;
+
+		Binder(int kind, int argIndex, int varIndex, String name,
+				Class<?> type, Object defaultValue) {
+			this.kind = kind;
+			this.argIndex = argIndex;
+			this.varIndex = varIndex;
+			this.name = name;
+			this.type = type;
+			this.defaultValue = defaultValue;
+		}
+	}
+}
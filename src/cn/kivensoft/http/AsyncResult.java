@@ -0,0 +1,78 @@
+package cn.kivensoft.http;
+
+/** 异步的web api返回对象，控制器函数返回该对象后工作线程立即释放，
+ * 结果由其它线程调用complete或fail设置，应答在设置结果的线程中发送
+ * 使用方法:
+ *     final AsyncResult ar = new AsyncResult();
+ *     executor.execute(new Runnable() { public void run() { ar.complete(ApiResult.success(x)); } });
+ *     return ar;
+ * @author kiven lee
+ * @version 1.0
+ */
+public class AsyncResult {
+
+//	@FunctionalInterface
+	public static interface Callback {
+		void apply(ApiResult result, Throwable error);
+	}
+
+	private ApiResult result;
+	private Throwable error;
+	private boolean done;
+	private Callback callback;
+
+	/** 设置成功结果，只有第一次设置有效
+	 * @param result 返回结果
+	 * @return 是否设置成功
+	 */
+	public boolean complete(ApiResult result) {
+		return finish(result, null);
+	}
+
+	/** 设置失败结果，只有第一次设置有效
+	 * @param error 失败原因
+	 * @return 是否设置成功
+	 */
+	public boolean fail(Throwable error) {
+		return finish(null, error == null ? new IllegalArgumentException("error is null") : error);
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized ApiResult getResult() {
+		return result;
+	}
+
+	public synchronized Throwable getError() {
+		return error;
+	}
+
+	/** 设置结果完成时的回调函数，已完成时在当前线程立即回调，回调后释放 */
+	void onComplete(Callback callback) {
+		synchronized (this) {
+			if (this.callback != null)
+				throw new IllegalStateException("callback already set.");
+			if (!done) {
+				this.callback = callback;
+				return;
+			}
+		}
+		callback.apply(result, error);
+	}
+
+	private boolean finish(ApiResult result, Throwable error) {
+		Callback cb;
+		synchronized (this) {
+			if (done) return false;
+			this.result = result;
+			this.error = error;
+			this.done = true;
+			cb = callback;
+			callback = null;
+		}
+		if (cb != null) cb.apply(result, error);
+		return true;
+	}
+}
@@ -0,0 +1,42 @@
+package cn.kivensoft.http;
+
+import java.io.UnsupportedEncodingException;
+
+/** 复制流经数据的开头部分，用于调试日志记录请求及应答内容，超过容量的部分丢弃
+ * @author kiven lee
+ * @version 1.0
+ */
+final class BytesTee {
+	private final byte[] buf;
+	private int count;
+	private long total;
+
+	public BytesTee(int size) {
+		buf = new byte[size];
+	}
+
+	public void write(int b) {
+		++total;
+		if (count < buf.length) buf[count++] = (byte) b;
+	}
+
+	public void write(byte[] b, int off, int len) {
+		total += len;
+		if (count < buf.length) {
+			int c = Math.min(len, buf.length - count);
+			System.arraycopy(b, off, buf, count, c);
+			count += c;
+		}
+	}
+
+	/** 已复制的内容，被截断时末尾加上省略号及总长度 */
+	@Override
+	public String toString() {
+		try {
+			String s = new String(buf, 0, count, "UTF-8");
+			return total > count ? s + "...(" + total + " bytes)" : s;
+		} catch (UnsupportedEncodingException e) {
+			return "";
+		}
+	}
+}
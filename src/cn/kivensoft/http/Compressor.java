@@ -0,0 +1,129 @@
+package cn.kivensoft.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import cn.kivensoft.function.Supplier;
+import cn.kivensoft.util.ObjectPool;
+
+/** 应答内容压缩器，gzip及deflate两种格式各自使用对象池复用Deflater，避免每个请求创建
+ * @author kiven lee
+ * @version 1.0
+ */
+final class Compressor extends ObjectPool.Item {
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED,
+			0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private static final ObjectPool<Compressor> gzipPool = new ObjectPool<Compressor>(
+			new Supplier<Compressor>() {
+				@Override public Compressor get() {
+					return new Compressor(true);
+				}
+	});
+
+	private static final ObjectPool<Compressor> deflatePool = new ObjectPool<Compressor>(
+			new Supplier<Compressor>() {
+				@Override public Compressor get() {
+					return new Compressor(false);
+				}
+	});
+
+	private final boolean gzip;
+	private final Deflater deflater;
+	private final CRC32 crc;
+	private final byte[] buf = new byte[8192];
+
+	private Compressor(boolean gzip) {
+		this.gzip = gzip;
+		// gzip格式自行写入头部及校验码，deflate格式使用zlib封装
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+		this.crc = gzip ? new CRC32() : null;
+	}
+
+	/** 从对象池获取指定格式的压缩器，使用完毕后调用recycle归还
+	 * @param encoding 压缩格式，gzip或deflate
+	 */
+	public static Compressor get(String encoding) {
+		return GZIP.equals(encoding) ? gzipPool.get() : deflatePool.get();
+	}
+
+	/** 根据请求头Accept-Encoding选择压缩格式，优先使用gzip
+	 * @param acceptEncoding 请求头的值
+	 * @return 压缩格式，客户端不支持压缩时返回null
+	 */
+	public static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null || acceptEncoding.isEmpty()) return null;
+		boolean deflate = false;
+		int start = 0, len = acceptEncoding.length();
+		while (start < len) {
+			int end = acceptEncoding.indexOf(',', start);
+			if (end < 0) end = len;
+			String item = acceptEncoding.substring(start, end).trim();
+			start = end + 1;
+			int semi = item.indexOf(';');
+			String name = semi < 0 ? item : item.substring(0, semi).trim();
+			// q=0表示明确不接受
+			if (semi >= 0 && quality(item, semi) <= 0) continue;
+			if (GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) return GZIP;
+			if (DEFLATE.equalsIgnoreCase(name)) deflate = true;
+		}
+		return deflate ? DEFLATE : null;
+	}
+
+	private static double quality(String item, int semi) {
+		int q = item.indexOf("q=", semi);
+		if (q < 0) return 1;
+		try {
+			return Double.parseDouble(item.substring(q + 2).trim());
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/** 开始压缩，gzip格式写入头部 */
+	public void begin(OutputStream out) throws IOException {
+		if (gzip) out.write(GZIP_HEADER);
+	}
+
+	public void write(byte[] b, int off, int len, OutputStream out) throws IOException {
+		if (len == 0) return;
+		if (gzip) crc.update(b, off, len);
+		deflater.setInput(b, off, len);
+		while (!deflater.needsInput()) {
+			int n = deflater.deflate(buf, 0, buf.length);
+			if (n > 0) out.write(buf, 0, n);
+		}
+	}
+
+	/** 结束压缩，输出剩余的压缩数据，gzip格式写入校验码及原始长度 */
+	public void finish(OutputStream out) throws IOException {
+		deflater.finish();
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buf, 0, buf.length);
+			if (n > 0) out.write(buf, 0, n);
+		}
+		if (gzip) {
+			writeIntLE(buf, 0, (int) crc.getValue());
+			writeIntLE(buf, 4, deflater.getTotalIn());
+			out.write(buf, 0, 8);
+		}
+	}
+
+	@Override
+	protected void clear() {
+		deflater.reset();
+		if (crc != null) crc.reset();
+	}
+
+	private static void writeIntLE(byte[] b, int off, int v) {
+		b[off] = (byte) v;
+		b[off + 1] = (byte) (v >> 8);
+		b[off + 2] = (byte) (v >> 16);
+		b[off + 3] = (byte) (v >> 24);
+	}
+}
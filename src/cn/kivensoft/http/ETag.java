@@ -0,0 +1,64 @@
+package cn.kivensoft.http;
+
+/** ETag的生成及If-None-Match的匹配，
+ * 生成的都是弱ETag，同一内容压缩与否都使用相同的值，匹配时使用弱比较
+ * @author kiven lee
+ * @version 1.0
+ */
+final class ETag {
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private ETag() {}
+
+	/** 根据映射函数提供的版本号生成ETag */
+	public static String of(String version) {
+		StringBuilder sb = new StringBuilder(version.length() + 4);
+		sb.append("W/\"");
+		for (int i = 0, n = version.length(); i < n; ++i) {
+			char c = version.charAt(i);
+			// 双引号及控制字符不允许出现在ETag中
+			if (c == '"' || c < 0x20 || c > 0x7e) c = '_';
+			sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	/** 根据序列化后的内容生成ETag，使用64位FNV-1a散列加上内容长度 */
+	public static String of(byte[] b, int off, int len) {
+		long h = FNV_OFFSET;
+		for (int i = off, n = off + len; i < n; ++i) {
+			h ^= b[i] & 0xff;
+			h *= FNV_PRIME;
+		}
+		return "W/\"" + Integer.toHexString(len) + '-' + Long.toHexString(h) + '"';
+	}
+
+	/** 判断请求头If-None-Match是否包含指定的ETag
+	 * @param ifNoneMatch 请求头的值，可以是逗号分隔的多个ETag或*
+	 * @param etag 当前内容的ETag
+	 */
+	public static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null || etag == null) return false;
+		String tag = opaque(etag, 0, etag.length());
+		int len = ifNoneMatch.length(), start = 0;
+		while (start < len) {
+			int end = ifNoneMatch.indexOf(',', start);
+			if (end < 0) end = len;
+			int s = start, e = end;
+			while (s < e && ifNoneMatch.charAt(s) == ' ') ++s;
+			while (e > s && ifNoneMatch.charAt(e - 1) == ' ') --e;
+			if (e - s == 1 && ifNoneMatch.charAt(s) == '*') return true;
+			if (opaque(ifNoneMatch, s, e).equals(tag)) return true;
+			start = end + 1;
+		}
+		return false;
+	}
+
+	// 去掉弱ETag的W/前缀，弱比较时只比较引号内的值
+	private static String opaque(String value, int start, int end) {
+		if (end - start > 2 && value.charAt(start) == 'W' && value.charAt(start + 1) == '/')
+			start += 2;
+		return value.substring(start, end);
+	}
+}
@@ -7,15 +7,13 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import cn.kivensoft.util.MyLogger;
 
 public class Example {
 
 	public static void main(String[] args) throws Exception {
-		ExecutorService cachedExecutor = Executors.newCachedThreadPool();
+		ServerExecutor workers = new ServerExecutor();
 
 		//加载日志配置文件
 		Properties props = new Properties();
@@ -35,13 +33,13 @@ public class Example {
 		// 初始化web api服务器
 		SimpleHttpServer httpServer = new SimpleHttpServer();
 		httpServer.scanPackage(null, "com.kivensoft.http", true);
-		httpServer.start("SimpleHttpServer", 8080, cachedExecutor);
+		httpServer.start("SimpleHttpServer", 8080, workers);
 		MyLogger.info("{} start at {}", "SimpleHttpServer", 8080);
 		
 		shell("SimpleHttpServer> ", System.in, System.out);
 		
 		httpServer.stop();
-		cachedExecutor.shutdown();
+		workers.shutdown();
 		MyLogger.info("SimpleHttpServer stop!");
 	}
 
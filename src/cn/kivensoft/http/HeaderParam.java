@@ -0,0 +1,22 @@
+package cn.kivensoft.http;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** 映射函数的参数绑定到http请求头，按参数类型自动转换，
+ * 请求头不存在或转换失败时使用defaultValue
+ * 使用方法:
+ *     public ApiResult list(@HeaderParam("X-Tenant") String tenant)
+ * @author kiven lee
+ * @version 1.0
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface HeaderParam {
+	/** 请求头名称，不区分大小写 */
+	String value();
+	/** 请求头不存在时使用的默认值 */
+	String defaultValue() default "";
+}
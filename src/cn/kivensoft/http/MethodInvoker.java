@@ -0,0 +1,201 @@
+package cn.kivensoft.http;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import cn.kivensoft.util.MyLogger;
+
+/** 控制器函数调用器，映射时使用asm为每个函数生成直接调用的字节码，
+ * 调用时不经过Method.invoke，固定参数个数的调用也不需要创建参数数组，
+ * 控制器类或函数不是public等无法生成时退化为反射调用
+ * @author kiven lee
+ * @version 1.0
+ */
+public abstract class MethodInvoker {
+	private static final String SUPER_NAME = Type.getInternalName(MethodInvoker.class);
+	private static final String OBJECT_DESC = Type.getDescriptor(Object.class);
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	protected MethodInvoker() {
+		super();
+	}
+
+	public Object invoke(Object target) throws Exception {
+		return invoke(target, new Object[0]);
+	}
+
+	public Object invoke(Object target, Object arg1) throws Exception {
+		return invoke(target, new Object[] { arg1 });
+	}
+
+	public Object invoke(Object target, Object arg1, Object arg2) throws Exception {
+		return invoke(target, new Object[] { arg1, arg2 });
+	}
+
+	/** 任意参数个数的调用 */
+	public abstract Object invoke(Object target, Object[] args) throws Exception;
+
+	/** 创建函数调用器，优先使用生成的字节码，失败则使用反射
+	 * @param method 要调用的函数
+	 * @return 函数调用器
+	 */
+	public static MethodInvoker create(Method method) {
+		Class<?> cls = method.getDeclaringClass();
+		if (Modifier.isPublic(cls.getModifiers()) && Modifier.isPublic(method.getModifiers())
+				&& !Modifier.isStatic(method.getModifiers())) {
+			try {
+				return generate(method);
+			} catch (Throwable e) {
+				MyLogger.warn(e, "generate invoker for {}.{} failed, use reflection instead.",
+						cls.getSimpleName(), method.getName());
+			}
+		}
+		return new ReflectInvoker(method);
+	}
+
+	private static MethodInvoker generate(Method method) throws Exception {
+		Class<?> owner = method.getDeclaringClass();
+		String className = owner.getName() + "$$Invoker$" + method.getName()
+				+ "$" + counter.incrementAndGet();
+		String internalName = className.replace('.', '/');
+
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC + Opcodes.ACC_SUPER + Opcodes.ACC_FINAL,
+				internalName, null, SUPER_NAME, null);
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, SUPER_NAME, "<init>", "()V");
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		Class<?>[] ps = method.getParameterTypes();
+		// 固定参数个数的重载直接从局部变量取参数
+		if (ps.length <= 2) {
+			StringBuilder desc = new StringBuilder("(").append(OBJECT_DESC);
+			for (int i = 0; i < ps.length; ++i) desc.append(OBJECT_DESC);
+			desc.append(')').append(OBJECT_DESC);
+			mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "invoke", desc.toString(), null, null);
+			mv.visitCode();
+			loadTarget(mv, owner);
+			for (int i = 0; i < ps.length; ++i) {
+				mv.visitVarInsn(Opcodes.ALOAD, i + 2);
+				unbox(mv, ps[i]);
+			}
+			callAndReturn(mv, owner, method);
+		}
+
+		// 参数数组方式的调用
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "invoke", "(" + OBJECT_DESC
+				+ "[" + OBJECT_DESC + ")" + OBJECT_DESC, null, null);
+		mv.visitCode();
+		loadTarget(mv, owner);
+		for (int i = 0; i < ps.length; ++i) {
+			mv.visitVarInsn(Opcodes.ALOAD, 2);
+			mv.visitLdcInsn(Integer.valueOf(i));
+			mv.visitInsn(Opcodes.AALOAD);
+			unbox(mv, ps[i]);
+		}
+		callAndReturn(mv, owner, method);
+		cw.visitEnd();
+
+		Class<?> cls = new InvokerClassLoader(owner.getClassLoader())
+				.define(className, cw.toByteArray());
+		return (MethodInvoker) cls.getConstructor().newInstance();
+	}
+
+	private static void loadTarget(MethodVisitor mv, Class<?> owner) {
+		mv.visitVarInsn(Opcodes.ALOAD, 1);
+		mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(owner));
+	}
+
+	private static void callAndReturn(MethodVisitor mv, Class<?> owner, Method method) {
+		boolean itf = owner.isInterface();
+		mv.visitMethodInsn(itf ? Opcodes.INVOKEINTERFACE : Opcodes.INVOKEVIRTUAL,
+				Type.getInternalName(owner), method.getName(),
+				Type.getMethodDescriptor(method));
+		box(mv, method.getReturnType());
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	// 将栈顶的Object转换为参数类型，基本类型先转换为包装类再取值
+	private static void unbox(MethodVisitor mv, Class<?> type) {
+		if (!type.isPrimitive()) {
+			if (type != Object.class)
+				mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(type));
+			return;
+		}
+		Type t = Type.getType(type);
+		String wrapper = Type.getInternalName(wrapperOf(type));
+		mv.visitTypeInsn(Opcodes.CHECKCAST, wrapper);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, wrapper,
+				type.getName() + "Value", "()" + t.getDescriptor());
+	}
+
+	// 将栈顶的返回值转换为Object，void返回null
+	private static void box(MethodVisitor mv, Class<?> type) {
+		if (type == void.class) {
+			mv.visitInsn(Opcodes.ACONST_NULL);
+			return;
+		}
+		if (!type.isPrimitive()) return;
+		String wrapper = Type.getInternalName(wrapperOf(type));
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, wrapper, "valueOf",
+				"(" + Type.getDescriptor(type) + ")L" + wrapper + ";");
+	}
+
+	private static Class<?> wrapperOf(Class<?> type) {
+		if (type == int.class) return Integer.class;
+		if (type == long.class) return Long.class;
+		if (type == boolean.class) return Boolean.class;
+		if (type == double.class) return Double.class;
+		if (type == float.class) return Float.class;
+		if (type == short.class) return Short.class;
+		if (type == byte.class) return Byte.class;
+		if (type == char.class) return Character.class;
+		throw new IllegalArgumentException("unknown primitive type " + type);
+	}
+
+	private static final class InvokerClassLoader extends ClassLoader {
+		InvokerClassLoader(ClassLoader parent) {
+			super(parent == null ? MethodInvoker.class.getClassLoader() : parent);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	/** 反射方式的调用器，异常时抛出被调用函数的原始异常 */
+	private static final class ReflectInvoker extends MethodInvoker {
+		private final Method method;
+
+		ReflectInvoker(Method method) {
+			this.method = method;
+			method.setAccessible(true);
+		}
+
+		@Override
+		public Object invoke(Object target, Object[] args) throws Exception {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				Throwable t = e.getCause();
+				if (t instanceof Exception) throw (Exception) t;
+				if (t instanceof Error) throw (Error) t;
+				throw e;
+			}
+		}
+	}
+}
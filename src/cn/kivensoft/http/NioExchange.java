@@ -0,0 +1,326 @@
+package cn.kivensoft.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/** nio引擎的http请求上下文，实现HttpExchange接口，使处理函数与jdk自带的http服务通用，
+ * 请求内容已经完整读入内存，应答内容写入连接的发送队列，由连接所属的事件循环线程发送
+ * @author kiven lee
+ * @version 1.0
+ */
+final class NioExchange extends HttpExchange {
+	private static final int BUFFER_SIZE = 8192;
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private final NioHttpEngine.Connection conn;
+	private final String method;
+	private final URI uri;
+	private final String protocol;
+	private final Headers requestHeaders;
+	private final Headers responseHeaders = new Headers();
+	private Map<String, Object> attributes;
+	private InputStream in;
+	private OutputStream out;
+	private final ResponseStream rawOut = new ResponseStream();
+	private int responseCode = -1;
+	private boolean keepAlive;
+
+	NioExchange(NioHttpEngine.Connection conn, String method, URI uri,
+			String protocol, Headers requestHeaders, byte[] body, boolean keepAlive) {
+		this.conn = conn;
+		this.method = method;
+		this.uri = uri;
+		this.protocol = protocol;
+		this.requestHeaders = requestHeaders;
+		this.keepAlive = keepAlive;
+		this.in = new ByteArrayInputStream(body);
+		this.out = rawOut;
+	}
+
+	@Override
+	public Headers getRequestHeaders() {
+		return requestHeaders;
+	}
+
+	@Override
+	public Headers getResponseHeaders() {
+		return responseHeaders;
+	}
+
+	@Override
+	public URI getRequestURI() {
+		return uri;
+	}
+
+	@Override
+	public String getRequestMethod() {
+		return method;
+	}
+
+	@Override
+	public HttpContext getHttpContext() {
+		return null;
+	}
+
+	/** 结束请求，已发送应答头时完成应答内容，否则直接关闭连接 */
+	@Override
+	public void close() {
+		try {
+			if (responseCode < 0) conn.abort();
+			else rawOut.close();
+		} catch (IOException e) {
+			conn.abort();
+		}
+	}
+
+	@Override
+	public InputStream getRequestBody() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getResponseBody() {
+		return out;
+	}
+
+	/** 发送应答头，与HttpExchange的约定相同:
+	 * responseLength大于0为固定长度，0为chunked方式，-1为没有应答内容
+	 */
+	@Override
+	public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+		if (responseCode >= 0)
+			throw new IOException("headers already sent");
+		responseCode = rCode;
+
+		boolean noBody = rCode == 204 || rCode == 304 || rCode < 200;
+		boolean http11 = "HTTP/1.1".equals(protocol);
+		if (noBody || responseLength < 0) {
+			rawOut.mode = ResponseStream.NONE;
+			if (!noBody) responseHeaders.set("Content-length", "0");
+		}
+		else if (responseLength > 0) {
+			rawOut.mode = ResponseStream.FIXED;
+			rawOut.remaining = responseLength;
+			responseHeaders.set("Content-length", Long.toString(responseLength));
+		}
+		else if (http11) {
+			rawOut.mode = ResponseStream.CHUNKED;
+			responseHeaders.set("Transfer-encoding", "chunked");
+		}
+		else {
+			// http/1.0不支持chunked，以关闭连接作为应答内容的结束
+			rawOut.mode = ResponseStream.EOF;
+			keepAlive = false;
+		}
+		if ("HEAD".equals(method)) rawOut.discard = true;
+
+		// 应用设置了Connection: close时发送完成后关闭连接
+		if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) keepAlive = false;
+		if (!keepAlive) responseHeaders.set("Connection", "close");
+		else if (!http11) responseHeaders.set("Connection", "keep-alive");
+		if (!responseHeaders.containsKey("Date"))
+			responseHeaders.set("Date", formatDate(new Date()));
+
+		rawOut.head = encodeHead(rCode);
+		if (rawOut.mode == ResponseStream.NONE) rawOut.close();
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		return conn.getRemoteAddress();
+	}
+
+	@Override
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return conn.getLocalAddress();
+	}
+
+	@Override
+	public String getProtocol() {
+		return protocol;
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes == null ? null : attributes.get(name);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		if (attributes == null) attributes = new HashMap<String, Object>();
+		attributes.put(name, value);
+	}
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o) {
+		if (i != null) in = i;
+		if (o != null) out = o;
+	}
+
+	@Override
+	public HttpPrincipal getPrincipal() {
+		return null;
+	}
+
+	private byte[] encodeHead(int rCode) {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("HTTP/1.1 ").append(rCode).append(' ').append(reasonPhrase(rCode)).append("\r\n");
+		for (Map.Entry<String, List<String>> item : responseHeaders.entrySet()) {
+			List<String> values = item.getValue();
+			for (int i = 0, n = values.size(); i < n; ++i)
+				sb.append(item.getKey()).append(": ").append(values.get(i)).append("\r\n");
+		}
+		sb.append("\r\n");
+		try {
+			return sb.toString().getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String reasonPhrase(int code) {
+		switch (code) {
+			case 100: return "Continue";
+			case 200: return "OK";
+			case 204: return "No Content";
+			case 304: return "Not Modified";
+			case 400: return "Bad Request";
+			case 404: return "Not Found";
+			case 411: return "Length Required";
+			case 413: return "Request Entity Too Large";
+			case 431: return "Request Header Fields Too Large";
+			case 500: return "Internal Server Error";
+			case 501: return "Not Implemented";
+			case 503: return "Service Unavailable";
+			case 504: return "Gateway Timeout";
+			default: return code < 300 ? "OK" : code < 400 ? "Redirect"
+					: code < 500 ? "Client Error" : "Server Error";
+		}
+	}
+
+	private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override protected SimpleDateFormat initialValue() {
+			SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			f.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return f;
+		}
+	};
+
+	static String formatDate(Date date) {
+		return dateFormat.get().format(date);
+	}
+
+	/** 应答内容输出流，按应答头确定的方式对内容分块并提交到连接的发送队列 */
+	private final class ResponseStream extends OutputStream {
+		static final int NONE = 0, FIXED = 1, CHUNKED = 2, EOF = 3;
+
+		int mode = NONE;
+		long remaining;
+		boolean discard;
+		byte[] head;
+		private byte[] buf;
+		private int count;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			checkWritable(1);
+			if (buf == null) buf = new byte[BUFFER_SIZE];
+			else if (count == buf.length) flushBuffer(false);
+			buf[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			checkWritable(len);
+			if (buf == null) buf = new byte[BUFFER_SIZE];
+			while (len > 0) {
+				if (count == buf.length) flushBuffer(false);
+				int n = Math.min(len, buf.length - count);
+				System.arraycopy(b, off, buf, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (!closed && responseCode >= 0) flushBuffer(false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) return;
+			if (responseCode < 0) throw new IOException("headers not sent");
+			closed = true;
+			// 固定长度的应答内容不足时，只能关闭连接让客户端知道应答出错
+			if (mode == FIXED && remaining > 0) keepAlive = false;
+			flushBuffer(true);
+			conn.complete(keepAlive);
+		}
+
+		private void checkWritable(int len) throws IOException {
+			if (closed) throw new IOException("stream closed");
+			if (responseCode < 0) throw new IOException("headers not sent");
+			if (mode == NONE) throw new IOException("response has no body");
+			if (mode == FIXED) {
+				if (len > remaining) throw new IOException("too many bytes to write");
+				remaining -= len;
+			}
+		}
+
+		// 把应答头及缓冲区内容提交到发送队列，chunked方式在最后加上结束块
+		private void flushBuffer(boolean last) throws IOException {
+			int n = discard ? 0 : count;
+			boolean chunked = mode == CHUNKED;
+			int size = (head == null ? 0 : head.length) + n
+					+ (chunked && n > 0 ? 12 : 0) + (chunked && last ? LAST_CHUNK.length : 0);
+			if (size == 0) {
+				count = 0;
+				return;
+			}
+			ByteBuffer bb = ByteBuffer.allocate(size);
+			if (head != null) {
+				bb.put(head);
+				head = null;
+			}
+			if (n > 0) {
+				if (chunked) {
+					bb.put(Integer.toHexString(n).getBytes("ISO-8859-1"));
+					bb.put(CRLF);
+				}
+				bb.put(buf, 0, n);
+				if (chunked) bb.put(CRLF);
+			}
+			if (chunked && last) bb.put(LAST_CHUNK);
+			count = 0;
+			bb.flip();
+			conn.write(bb);
+		}
+	}
+}
@@ -0,0 +1,715 @@
+package cn.kivensoft.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpHandler;
+
+import cn.kivensoft.util.MyLogger;
+
+/** 基于java.nio选择器的http/1.1服务引擎，用于替代jdk自带的HttpServer，
+ * 一个或多个接收线程加多个事件循环线程(缺省每个cpu核一个)，每个事件循环复用一个直接内存读缓冲区，
+ * 多个接收线程时各自使用SO_REUSEPORT监听同一端口，由内核分配连接，每个接收线程只分派给自己的事件循环，
+ * 支持keep-alive及管道化请求，同一连接上的请求按顺序逐个处理，
+ * 请求内容完整读取后以NioExchange的形式交给HttpHandler处理
+ * @author kiven lee
+ * @version 1.0
+ */
+final class NioHttpEngine {
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_HEADER_SIZE = 16 * 1024;
+	// 非事件循环线程写入应答时，发送队列超过该长度则等待，避免大应答占满内存
+	private static final int MAX_PENDING_BYTES = 1024 * 1024;
+	private static final long IDLE_TIMEOUT = 60000;
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	private static final byte[] CONTINUE_100 = bytes("HTTP/1.1 100 Continue\r\n\r\n");
+	// chunked解码状态，非负数表示当前块剩余的数据字节数
+	private static final int CHUNK_SIZE_LINE = -1;
+	private static final int CHUNK_DATA_END = -2;
+	private static final int CHUNK_TRAILER = -3;
+	// chunked解码结果
+	private static final int DECODE_MORE = 0;
+	private static final int DECODE_DONE = 1;
+	private static final int DECODE_BAD = 2;
+	private static final int DECODE_TOO_LARGE = 3;
+
+	private final InetSocketAddress address;
+	private final HttpHandler handler;
+	private final Executor executor;
+	private final long maxContentLength;
+	private final EventLoop[] loops;
+	private final int backlog;
+	private int acceptorCount;
+	private ServerSocketChannel[] serverChannels;
+	private volatile boolean running;
+
+	/** 创建nio引擎
+	 * @param address 监听地址
+	 * @param handler 请求处理函数
+	 * @param executor 执行处理函数的线程池，为null时在事件循环线程中直接执行
+	 * @param loopCount 事件循环线程数，小于等于0时使用cpu核数
+	 * @param maxContentLength 请求内容的最大长度，超过时返回413并关闭连接
+	 * @param backlog 监听队列长度，小于等于0时使用系统缺省值
+	 * @param acceptorCount 接收线程数，大于1时需要系统支持SO_REUSEPORT，不支持时退化为1个
+	 */
+	NioHttpEngine(InetSocketAddress address, HttpHandler handler, Executor executor,
+			int loopCount, long maxContentLength, int backlog, int acceptorCount) {
+		this.address = address;
+		this.handler = handler;
+		this.executor = executor;
+		// 请求内容保存在字节数组中，长度不能超过数组的上限
+		this.maxContentLength = maxContentLength > 0 && maxContentLength < MAX_ARRAY_SIZE
+				? maxContentLength : MAX_ARRAY_SIZE;
+		if (loopCount <= 0) loopCount = Runtime.getRuntime().availableProcessors();
+		this.loops = new EventLoop[loopCount];
+		this.backlog = backlog;
+		this.acceptorCount = acceptorCount < 1 ? 1 : acceptorCount;
+	}
+
+	public void start() throws IOException {
+		serverChannels = new ServerSocketChannel[acceptorCount];
+		boolean ok = false;
+		try {
+			for (int i = 0; i < loops.length; ++i)
+				loops[i] = new EventLoop("http-nio-loop-" + (i + 1));
+			for (int i = 0; i < acceptorCount; ++i) {
+				ServerSocketChannel ch = ServerSocketChannel.open();
+				serverChannels[i] = ch;
+				ch.socket().setReuseAddress(true);
+				if (acceptorCount > 1 && !setReusePort(ch)) {
+					if (i > 0) throw new IOException("set SO_REUSEPORT failed.");
+					MyLogger.warn("SO_REUSEPORT unsupported, use single acceptor.");
+					acceptorCount = 1;
+					serverChannels = new ServerSocketChannel[] { ch };
+				}
+				// 使用第一个监听的实际地址，端口为0时后续监听共享同一个随机端口
+				ch.socket().bind(i == 0 ? address : getAddress(), backlog);
+			}
+			ok = true;
+		}
+		finally {
+			// 启动失败时关闭已打开的监听及事件循环的selector
+			if (!ok) {
+				stopAccepting();
+				for (int i = 0; i < loops.length; ++i) {
+					if (loops[i] == null) continue;
+					try {
+						loops[i].selector.close();
+					} catch (IOException e) { }
+					loops[i] = null;
+				}
+			}
+		}
+		running = true;
+		for (int i = 0; i < loops.length; ++i) loops[i].start();
+
+		for (int i = 0; i < acceptorCount; ++i) {
+			final int index = i;
+			Thread acceptor = new Thread(new Runnable() {
+				@Override public void run() {
+					accept(index);
+				}
+			}, "http-nio-acceptor-" + (i + 1));
+			// 与HttpServer的分派线程相同，接收线程不是守护线程，服务停止前进程不会退出
+			acceptor.start();
+		}
+	}
+
+	/** 关闭监听，不再接收新连接，已有连接继续处理，用于停止服务前等待请求完成 */
+	public void stopAccepting() {
+		for (int i = 0; i < serverChannels.length; ++i) {
+			try {
+				if (serverChannels[i] != null) serverChannels[i].close();
+			} catch (IOException e) { }
+		}
+	}
+
+	public void stop() {
+		running = false;
+		stopAccepting();
+		for (int i = 0; i < loops.length; ++i)
+			if (loops[i] != null) loops[i].selector.wakeup();
+	}
+
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) serverChannels[0].socket().getLocalSocketAddress();
+	}
+
+	/** 实际使用的接收线程数 */
+	public int getAcceptorCount() {
+		return acceptorCount;
+	}
+
+	// 通过反射设置SO_REUSEPORT(java9以上且系统支持)，使多个监听共享同一端口
+	private static boolean setReusePort(ServerSocketChannel ch) {
+		try {
+			Object opt = Class.forName("java.net.StandardSocketOptions")
+					.getField("SO_REUSEPORT").get(null);
+			// 通过公开的接口取得函数，实现类所在的模块未导出无法直接反射调用
+			Class<?> nc = Class.forName("java.nio.channels.NetworkChannel");
+			Set<?> supported = (Set<?>) nc.getMethod("supportedOptions").invoke(ch);
+			if (!supported.contains(opt)) return false;
+			nc.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class)
+					.invoke(ch, opt, Boolean.TRUE);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	// 接收新连接，按轮询方式分配给本接收线程负责的事件循环，
+	// 事件循环按序号取模分组，事件循环数少于接收线程数时多个接收线程共用
+	private void accept(int index) {
+		ServerSocketChannel serverChannel = serverChannels[index];
+		int group = Math.min(acceptorCount, loops.length);
+		int first = index % group;
+		int count = (loops.length - first + group - 1) / group;
+		int next = 0;
+		while (running) {
+			try {
+				SocketChannel ch = serverChannel.accept();
+				ch.configureBlocking(false);
+				ch.socket().setTcpNoDelay(true);
+				loops[first + (next++ % count) * group].register(ch);
+				if (next == count) next = 0;
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				if (running) MyLogger.warn(e, "accept connection error.");
+			}
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** 事件循环，负责一组连接的读写，所有连接状态只在本线程中修改 */
+	final class EventLoop implements Runnable {
+		final Selector selector;
+		final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final Thread thread;
+		private long lastIdleCheck;
+
+		EventLoop(String name) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+		}
+
+		void start() {
+			thread.start();
+		}
+
+		boolean inLoop() {
+			return Thread.currentThread() == thread;
+		}
+
+		void execute(Runnable task) {
+			tasks.offer(task);
+			if (!inLoop()) selector.wakeup();
+		}
+
+		void register(final SocketChannel ch) {
+			execute(new Runnable() {
+				@Override public void run() {
+					try {
+						Connection conn = new Connection(EventLoop.this, ch);
+						conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+					} catch (IOException e) {
+						try {
+							ch.close();
+						} catch (IOException ex) { }
+					}
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select(1000);
+					Runnable task;
+					while ((task = tasks.poll()) != null) task.run();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Connection conn = (Connection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) conn.onRead();
+							if (key.isValid() && key.isWritable()) conn.onWrite();
+						} catch (IOException e) {
+							conn.close();
+						} catch (Exception e) {
+							MyLogger.error(e, "nio connection error.");
+							conn.close();
+						}
+					}
+					closeIdle();
+				}
+			} catch (IOException e) {
+				MyLogger.error(e, "nio event loop error.");
+			} finally {
+				for (Object key : selector.keys().toArray())
+					((Connection) ((SelectionKey) key).attachment()).close();
+				try {
+					selector.close();
+				} catch (IOException e) { }
+			}
+		}
+
+		// 关闭空闲超时的keep-alive连接
+		private void closeIdle() {
+			long now = System.currentTimeMillis();
+			if (now - lastIdleCheck < 1000) return;
+			lastIdleCheck = now;
+			for (Object key : selector.keys().toArray()) {
+				Connection conn = (Connection) ((SelectionKey) key).attachment();
+				if (conn.exchange == null && now - conn.lastActive > IDLE_TIMEOUT)
+					conn.close();
+			}
+		}
+	}
+
+	/** 客户端连接，解析请求并按顺序处理，保存待发送的应答数据 */
+	final class Connection {
+		final EventLoop loop;
+		final SocketChannel channel;
+		SelectionKey key;
+		// 已接收未解析的数据
+		private byte[] in = new byte[1024];
+		private int inLen;
+		private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		private final AtomicLong pendingBytes = new AtomicLong();
+		// 正在处理的请求，为null表示空闲
+		volatile NioExchange exchange;
+		// 已解析请求头，等待请求内容
+		private Head head;
+		// chunked请求内容的解码结果及解码状态，跨多次读取保持，已解码的数据从缓冲区移除
+		private ByteArrayOutputStream chunkBody;
+		private int chunkState;
+		private boolean closing;
+		// 正在解析请求，期间完成的应答不再递归解析
+		private boolean parsing;
+		private volatile boolean closed;
+		long lastActive = System.currentTimeMillis();
+
+		Connection(EventLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		InetSocketAddress getRemoteAddress() {
+			return (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+		}
+
+		InetSocketAddress getLocalAddress() {
+			return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+		}
+
+		void onRead() throws IOException {
+			ByteBuffer buf = loop.readBuffer;
+			buf.clear();
+			int n = channel.read(buf);
+			if (n < 0) {
+				close();
+				return;
+			}
+			buf.flip();
+			if (inLen + n > in.length) {
+				int len = Math.max(in.length << 1, inLen + n);
+				byte[] nin = new byte[len];
+				System.arraycopy(in, 0, nin, 0, inLen);
+				in = nin;
+			}
+			buf.get(in, inLen, n);
+			inLen += n;
+			lastActive = System.currentTimeMillis();
+			if (exchange == null) parse();
+		}
+
+		void onWrite() throws IOException {
+			flush();
+		}
+
+		// 解析请求，得到完整的请求后交给处理函数，处理完成前不再解析后续的请求，
+		// 处理函数在事件循环线程中同步完成时由本循环继续解析管道化的请求，不递归调用
+		private void parse() throws IOException {
+			if (parsing) return;
+			parsing = true;
+			try {
+				while (!closing && !closed && exchange == null && parseOne()) { }
+			} finally {
+				parsing = false;
+			}
+		}
+
+		// 解析一个请求，已分派时返回true，数据不足或出错时返回false
+		private boolean parseOne() throws IOException {
+			if (head == null) {
+				int end = indexOfHeadEnd();
+				if (end < 0) {
+					if (inLen > MAX_HEADER_SIZE) sendError(431);
+					return false;
+				}
+				head = Head.parse(in, end);
+				consume(end + 4);
+				if (head == null) {
+					sendError(400);
+					return false;
+				}
+				if (head.contentLength > maxContentLength) {
+					sendError(413);
+					return false;
+				}
+				if (head.expectContinue && (head.chunked || inLen < head.contentLength))
+					writeDirect(ByteBuffer.wrap(CONTINUE_100));
+			}
+
+			byte[] body;
+			if (head.chunked) {
+				if (chunkBody == null) {
+					chunkBody = new ByteArrayOutputStream();
+					chunkState = CHUNK_SIZE_LINE;
+				}
+				int ret = decodeChunked();
+				if (ret == DECODE_MORE) return false;
+				ByteArrayOutputStream bos = chunkBody;
+				chunkBody = null;
+				if (ret != DECODE_DONE) {
+					sendError(ret == DECODE_BAD ? 400 : 413);
+					return false;
+				}
+				body = bos.toByteArray();
+			}
+			else {
+				int len = (int) head.contentLength;
+				if (inLen < len) return false;
+				body = new byte[len];
+				System.arraycopy(in, 0, body, 0, len);
+				consume(len);
+			}
+
+			Head h = head;
+			head = null;
+			dispatch(new NioExchange(this, h.method, h.uri, h.protocol, h.headers, body, h.keepAlive));
+			return true;
+		}
+
+		private void dispatch(final NioExchange ex) {
+			exchange = ex;
+			// 处理期间暂停读取，管道化的后续请求保留在缓冲区中
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			Runnable task = new Runnable() {
+				@Override public void run() {
+					try {
+						handler.handle(ex);
+					} catch (Throwable e) {
+						MyLogger.error(e, "nio handle request error.");
+						if (ex.getResponseCode() < 0) {
+							try {
+								ex.sendResponseHeaders(500, -1);
+							} catch (IOException ioe) {
+								abort();
+							}
+						}
+						else ex.close();
+					}
+				}
+			};
+			if (executor == null) task.run();
+			else executor.execute(task);
+		}
+
+		/** 提交应答数据，可在任意线程调用 */
+		void write(final ByteBuffer data) throws IOException {
+			if (closed) throw new IOException("connection closed");
+			if (loop.inLoop()) {
+				writeDirect(data);
+				return;
+			}
+			long pending = pendingBytes.addAndGet(data.remaining());
+			loop.execute(new Runnable() {
+				@Override public void run() {
+					try {
+						writeDirect(data);
+					} catch (IOException e) {
+						close();
+					}
+				}
+			});
+			// 发送队列过长时等待事件循环发送，形成反压
+			if (pending > MAX_PENDING_BYTES) {
+				synchronized (this) {
+					while (!closed && pendingBytes.get() > MAX_PENDING_BYTES) {
+						try {
+							wait(100);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new IOException("interrupted");
+						}
+					}
+				}
+			}
+		}
+
+		/** 应答完成，keepAlive为true时继续处理后续请求，否则发送完成后关闭连接 */
+		void complete(final boolean keepAlive) {
+			Runnable task = new Runnable() {
+				@Override public void run() {
+					exchange = null;
+					if (!keepAlive) closing = true;
+					try {
+						flush();
+						if (!closing && !closed) {
+							key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+							if (inLen > 0) parse();
+						}
+					} catch (IOException e) {
+						close();
+					}
+				}
+			};
+			if (loop.inLoop()) task.run();
+			else loop.execute(task);
+		}
+
+		/** 处理出错时直接关闭连接，可在任意线程调用 */
+		void abort() {
+			if (loop.inLoop()) close();
+			else loop.execute(new Runnable() {
+				@Override public void run() {
+					close();
+				}
+			});
+		}
+
+		void close() {
+			if (closed) return;
+			closed = true;
+			if (key != null) key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) { }
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+
+		private void writeDirect(ByteBuffer data) throws IOException {
+			if (closed) return;
+			out.add(data);
+			flush();
+		}
+
+		private void flush() throws IOException {
+			ByteBuffer b;
+			while ((b = out.peek()) != null) {
+				int n = channel.write(b);
+				if (n > 0 && pendingBytes.get() > 0) released(n);
+				if (b.hasRemaining()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				out.poll();
+			}
+			if (key.isValid())
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (closing && exchange == null) close();
+		}
+
+		private void released(int n) {
+			if (pendingBytes.addAndGet(-n) <= MAX_PENDING_BYTES) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+
+		// 协议错误时返回错误码并关闭连接
+		private void sendError(int code) throws IOException {
+			closing = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			writeDirect(ByteBuffer.wrap(bytes("HTTP/1.1 " + code + " "
+					+ NioExchange.reasonPhrase(code)
+					+ "\r\nContent-length: 0\r\nConnection: close\r\n\r\n")));
+		}
+
+		private int indexOfHeadEnd() {
+			for (int i = 3; i < inLen; ++i)
+				if (in[i] == '\n' && in[i - 1] == '\r' && in[i - 2] == '\n' && in[i - 3] == '\r')
+					return i - 3;
+			return -1;
+		}
+
+		private void consume(int n) {
+			inLen -= n;
+			if (inLen > 0) System.arraycopy(in, n, in, 0, inLen);
+			if (inLen == 0 && in.length > READ_BUFFER_SIZE) in = new byte[1024];
+		}
+
+		/** 从上次的状态继续解码chunked方式的请求内容，解码的数据写入chunkBody并从缓冲区移除
+		 * @return DECODE_MORE内容不完整，DECODE_DONE解码完成，
+		 *     DECODE_BAD格式错误，DECODE_TOO_LARGE内容过大
+		 */
+		private int decodeChunked() {
+			int pos = 0, ret = DECODE_MORE;
+			loop:
+			while (true) {
+				if (chunkState == CHUNK_SIZE_LINE) {
+					int eol = indexOfCrlf(pos);
+					if (eol < 0) {
+						if (inLen - pos > MAX_HEADER_SIZE) ret = DECODE_BAD;
+						break;
+					}
+					long size = 0;
+					int i = pos;
+					for (; i < eol; ++i) {
+						int d = Character.digit(in[i], 16);
+						if (d < 0) break;
+						size = (size << 4) + d;
+						if (chunkBody.size() + size > maxContentLength) {
+							ret = DECODE_TOO_LARGE;
+							break loop;
+						}
+					}
+					// 块大小至少一位16进制数字，之后只允许块扩展
+					if (i == pos || i < eol && in[i] != ';' && in[i] != ' ' && in[i] != '\t') {
+						ret = DECODE_BAD;
+						break;
+					}
+					pos = eol + 2;
+					chunkState = size == 0 ? CHUNK_TRAILER : (int) size;
+				}
+				else if (chunkState == CHUNK_TRAILER) {
+					// 跳过trailer直到空行
+					int eol = indexOfCrlf(pos);
+					if (eol < 0) {
+						if (inLen - pos > MAX_HEADER_SIZE) ret = DECODE_BAD;
+						break;
+					}
+					boolean end = eol == pos;
+					pos = eol + 2;
+					if (end) {
+						ret = DECODE_DONE;
+						break;
+					}
+				}
+				else if (chunkState == CHUNK_DATA_END) {
+					if (inLen - pos < 2) break;
+					if (in[pos] != '\r' || in[pos + 1] != '\n') {
+						ret = DECODE_BAD;
+						break;
+					}
+					pos += 2;
+					chunkState = CHUNK_SIZE_LINE;
+				}
+				else {
+					int n = Math.min(chunkState, inLen - pos);
+					if (n == 0) break;
+					chunkBody.write(in, pos, n);
+					pos += n;
+					chunkState -= n;
+					if (chunkState == 0) chunkState = CHUNK_DATA_END;
+				}
+			}
+			consume(pos);
+			return ret;
+		}
+
+		private int indexOfCrlf(int start) {
+			for (int i = start + 1; i < inLen; ++i)
+				if (in[i] == '\n' && in[i - 1] == '\r') return i - 1;
+			return -1;
+		}
+	}
+
+	/** 请求行及请求头 */
+	static final class Head {
+		String method;
+		URI uri;
+		String protocol;
+		Headers headers = new Headers();
+		long contentLength;
+		boolean chunked;
+		boolean keepAlive;
+		boolean expectContinue;
+
+		// 解析请求头，格式错误时返回null
+		static Head parse(byte[] data, int len) {
+			String text;
+			try {
+				text = new String(data, 0, len, "ISO-8859-1");
+			} catch (UnsupportedEncodingException e) {
+				return null;
+			}
+			int eol = text.indexOf("\r\n");
+			String line = eol < 0 ? text : text.substring(0, eol);
+			int sp1 = line.indexOf(' '), sp2 = line.lastIndexOf(' ');
+			if (sp1 <= 0 || sp2 <= sp1) return null;
+
+			Head h = new Head();
+			h.method = line.substring(0, sp1);
+			h.protocol = line.substring(sp2 + 1);
+			if (!h.protocol.startsWith("HTTP/")) return null;
+			try {
+				h.uri = new URI(line.substring(sp1 + 1, sp2));
+			} catch (URISyntaxException e) {
+				return null;
+			}
+
+			while (eol >= 0) {
+				int start = eol + 2;
+				eol = text.indexOf("\r\n", start);
+				String hl = eol < 0 ? text.substring(start) : text.substring(start, eol);
+				int colon = hl.indexOf(':');
+				if (colon <= 0) continue;
+				h.headers.add(hl.substring(0, colon).trim(), hl.substring(colon + 1).trim());
+			}
+
+			String te = h.headers.getFirst("Transfer-encoding");
+			h.chunked = te != null && te.toLowerCase().contains("chunked");
+			String cl = h.headers.getFirst("Content-length");
+			if (cl != null && !h.chunked) {
+				try {
+					h.contentLength = Long.parseLong(cl.trim());
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				if (h.contentLength < 0) return null;
+			}
+			String conn = h.headers.getFirst("Connection");
+			boolean http11 = "HTTP/1.1".equals(h.protocol);
+			h.keepAlive = conn == null ? http11 : http11
+					? !"close".equalsIgnoreCase(conn.trim()) : "keep-alive".equalsIgnoreCase(conn.trim());
+			String expect = h.headers.getFirst("Expect");
+			h.expectContinue = expect != null && "100-continue".equalsIgnoreCase(expect.trim());
+			return h;
+		}
+	}
+}
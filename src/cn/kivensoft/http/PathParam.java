@@ -0,0 +1,21 @@
+package cn.kivensoft.http;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** 映射函数的参数绑定到地址模板中的路径变量，按参数类型自动转换，
+ * 名称必须是映射地址中{name}形式的变量
+ * 使用方法:
+ *     @RequestMapping("{id}/detail")
+ *     public ApiResult detail(@PathParam("id") long id)
+ * @author kiven lee
+ * @version 1.0
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface PathParam {
+	/** 路径变量名称 */
+	String value();
+}
@@ -0,0 +1,69 @@
+package cn.kivensoft.http;
+
+import java.io.OutputStream;
+
+import cn.kivensoft.function.Supplier;
+import cn.kivensoft.util.ObjectPool;
+
+/** 可复用的字节缓冲区，用于请求及应答内容的读写，
+ * 使用方法: PooledBytes b = PooledBytes.get(); ... b.recycle();
+ * @author kiven lee
+ * @version 1.0
+ */
+final class PooledBytes extends ObjectPool.Item {
+	private static final int INIT_SIZE = 8192;
+	// 超过该长度的缓冲区回收时丢弃，避免超大缓冲区长期占用对象池
+	private static final int MAX_POOLED_SIZE = 256 * 1024;
+
+	private static final ObjectPool<PooledBytes> pool = new ObjectPool<PooledBytes>(
+			new Supplier<PooledBytes>() {
+				@Override public PooledBytes get() {
+					return new PooledBytes();
+				}
+	});
+
+	byte[] buf = new byte[INIT_SIZE];
+	int count;
+
+	public static PooledBytes get() {
+		return pool.get();
+	}
+
+	/** 扩展缓冲区容量，保留已有内容
+	 * @param minCapacity 需要的最小容量
+	 * @param maxCapacity 允许的最大容量
+	 */
+	public void ensureCapacity(int minCapacity, int maxCapacity) {
+		if (minCapacity <= buf.length) return;
+		int len = buf.length << 1;
+		if (len < minCapacity) len = minCapacity;
+		if (len > maxCapacity) len = maxCapacity;
+		byte[] nbuf = new byte[len];
+		System.arraycopy(buf, 0, nbuf, 0, count);
+		buf = nbuf;
+	}
+
+	/** 以输出流的方式向缓冲区追加内容，用于需要完整内容的场合，长度不受限制 */
+	public OutputStream asOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) {
+				ensureCapacity(count + 1, Integer.MAX_VALUE);
+				buf[count++] = (byte) b;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				ensureCapacity(count + len, Integer.MAX_VALUE);
+				System.arraycopy(b, off, buf, count, len);
+				count += len;
+			}
+		};
+	}
+
+	@Override
+	protected void clear() {
+		count = 0;
+		if (buf.length > MAX_POOLED_SIZE) buf = new byte[INIT_SIZE];
+	}
+}
@@ -0,0 +1,24 @@
+package cn.kivensoft.http;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** 映射函数的参数绑定到url请求参数，按参数类型自动转换，
+ * 支持String、基本类型及其包装类型、枚举、Date、BigDecimal等Langs.valueOf支持的类型，
+ * 请求参数不存在或转换失败时使用defaultValue，基本类型再失败时为0或false
+ * 使用方法:
+ *     @RequestMapping("list")
+ *     public ApiResult list(@QueryParam("page") int page, @QueryParam("type") EType type)
+ * @author kiven lee
+ * @version 1.0
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface QueryParam {
+	/** 请求参数名称，区分大小写 */
+	String value();
+	/** 请求参数不存在时使用的默认值 */
+	String defaultValue() default "";
+}
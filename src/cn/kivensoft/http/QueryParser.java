@@ -0,0 +1,230 @@
+package cn.kivensoft.http;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import cn.kivensoft.function.Supplier;
+import cn.kivensoft.util.Langs;
+import cn.kivensoft.util.MyLogger;
+import cn.kivensoft.util.ObjectPool;
+
+/** url请求参数解析器，一次遍历完成%编码及utf8解码，解码结果写入可复用的字符缓冲区，
+ * 绑定到映射函数参数时只为需要的参数值创建对象，整数类型直接从缓冲区解析
+ * 使用方法: QueryParser p = QueryParser.get(); p.bind(query, binding, args); p.recycle();
+ * @author kiven lee
+ * @version 1.0
+ */
+final class QueryParser extends ObjectPool.Item {
+	private static final int INIT_SIZE = 256;
+	// 超过该长度的缓冲区回收时丢弃
+	private static final int MAX_POOLED_SIZE = 8192;
+
+	private static final ObjectPool<QueryParser> pool = new ObjectPool<QueryParser>(
+			new Supplier<QueryParser>() {
+				@Override public QueryParser get() {
+					return new QueryParser();
+				}
+	});
+
+	private char[] chars = new char[INIT_SIZE];
+
+	public static QueryParser get() {
+		return pool.get();
+	}
+
+	/** 解析请求参数成字典，同名参数的多个值保存为ArrayList */
+	@SuppressWarnings("unchecked")
+	public HashMap<String, Object> parse(String query) {
+		HashMap<String, Object> ret = new HashMap<String, Object>();
+		if (query == null || query.isEmpty()) return ret;
+		int len = query.length(), start = 0;
+		while (start < len) {
+			int end = query.indexOf('&', start);
+			if (end < 0) end = len;
+			int eq = query.indexOf('=', start);
+			if (eq <= start || eq >= end) {
+				MyLogger.debug("parseQuery warning, query string can't parse");
+				start = end + 1;
+				continue;
+			}
+			int nlen = decode(query, start, eq, 0);
+			int vend = decode(query, eq + 1, end, nlen);
+			String key = new String(chars, 0, nlen);
+			String value = new String(chars, nlen, vend - nlen);
+
+			// 写入键值到字典表中
+			Object old = ret.get(key);
+			if (old == null) ret.put(key, value);
+			else if (old instanceof ArrayList) ((ArrayList<String>) old).add(value);
+			else {
+				ArrayList<String> values = new ArrayList<String>();
+				values.add((String) old);
+				values.add(value);
+				ret.put(key, values);
+			}
+			start = end + 1;
+		}
+		return ret;
+	}
+
+	/** 解析请求参数并按绑定规则转换后写入参数数组，同名参数只取第一个，
+	 * 不存在的参数使用默认值
+	 * @param query 原始的请求参数
+	 * @param binding 映射函数的参数绑定规则
+	 * @param args 映射函数的参数数组
+	 */
+	public void bind(String query, Binding binding, Object[] args) {
+		int len = query == null ? 0 : query.length(), start = 0;
+		while (start < len) {
+			int end = query.indexOf('&', start);
+			if (end < 0) end = len;
+			int eq = query.indexOf('=', start);
+			if (eq > start && eq < end) {
+				int nlen = decode(query, start, eq, 0);
+				int idx = binding.indexOf(chars, nlen);
+				if (idx >= 0 && args[binding.argIndexes[idx]] == null) {
+					int vend = decode(query, eq + 1, end, nlen);
+					args[binding.argIndexes[idx]] = convert(binding.types[idx],
+							chars, nlen, vend - nlen);
+				}
+			}
+			start = end + 1;
+		}
+		for (int i = 0, n = binding.names.length; i < n; ++i)
+			if (args[binding.argIndexes[i]] == null)
+				args[binding.argIndexes[i]] = binding.defaults[i];
+	}
+
+	/** 解码s中from到to之间的内容，写入字符缓冲区的pos位置
+	 * @return 写入后的缓冲区位置
+	 */
+	private int decode(String s, int from, int to, int pos) {
+		// 解码后的长度不会超过原始长度
+		if (pos + to - from > chars.length) {
+			char[] nchars = new char[Math.max(chars.length << 1, pos + to - from)];
+			System.arraycopy(chars, 0, nchars, 0, pos);
+			chars = nchars;
+		}
+		char[] cs = chars;
+		int i = from;
+		while (i < to) {
+			char c = s.charAt(i);
+			if (c == '+') {
+				cs[pos++] = ' ';
+				++i;
+				continue;
+			}
+			int b = c == '%' ? hex(s, i, to) : -1;
+			if (b < 0) {
+				cs[pos++] = c;
+				++i;
+				continue;
+			}
+			i += 3;
+			if (b < 0x80) {
+				cs[pos++] = (char) b;
+				continue;
+			}
+			// utf8多字节编码，后续字节必须也是%编码的10xxxxxx
+			int n = b >= 0xf0 ? 3 : b >= 0xe0 ? 2 : b >= 0xc0 ? 1 : 0;
+			int cp = n == 0 ? -1 : b & (0x3f >> n);
+			for (int k = 0; k < n; ++k) {
+				int b2 = hex(s, i, to);
+				if ((b2 & 0xc0) != 0x80) {
+					cp = -1;
+					break;
+				}
+				cp = (cp << 6) | (b2 & 0x3f);
+				i += 3;
+			}
+			if (cp < 0) cs[pos++] = '\ufffd';
+			else if (cp >= 0x10000) {
+				cp -= 0x10000;
+				cs[pos++] = (char) (0xd800 + (cp >> 10));
+				cs[pos++] = (char) (0xdc00 + (cp & 0x3ff));
+			}
+			else cs[pos++] = (char) cp;
+		}
+		return pos;
+	}
+
+	// 解析i位置开始的%xx，格式错误返回-1
+	private static int hex(String s, int i, int to) {
+		if (i + 2 >= to || s.charAt(i) != '%') return -1;
+		int h = Character.digit(s.charAt(i + 1), 16), l = Character.digit(s.charAt(i + 2), 16);
+		return h < 0 || l < 0 ? -1 : (h << 4) | l;
+	}
+
+	/** 把字符缓冲区中的内容转换成指定类型，整数直接解析不创建字符串，
+	 * 其它类型使用Langs.valueOf转换，转换失败返回null
+	 */
+	static Object convert(Class<?> type, char[] cs, int off, int len) {
+		if (len == 0) return type == String.class ? "" : null;
+		boolean isInt = type == Integer.TYPE || type == Integer.class;
+		if ((isInt || type == Long.TYPE || type == Long.class) && len <= 18) {
+			boolean neg = cs[off] == '-';
+			int i = neg || cs[off] == '+' ? off + 1 : off, end = off + len;
+			long v = 0;
+			for (; i < end; ++i) {
+				char c = cs[i];
+				if (c < '0' || c > '9') break;
+				v = v * 10 + (c - '0');
+			}
+			if (i == end && end > off + (neg || cs[off] == '+' ? 1 : 0)) {
+				if (neg) v = -v;
+				if (!isInt) return Long.valueOf(v);
+				if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) return Integer.valueOf((int) v);
+				return null;
+			}
+		}
+		return Langs.valueOf(type, new String(cs, off, len));
+	}
+
+	/** 把文本转换成指定类型，转换失败返回null */
+	static Object convert(Class<?> type, String value) {
+		if (value == null) return null;
+		return type == String.class ? value : Langs.valueOf(type, value);
+	}
+
+	/** 转换默认值，基本类型转换失败时使用0或false，保证调用时不会传入null */
+	static Object defaultValue(Class<?> type, String value) {
+		Object ret = value.isEmpty() ? null : convert(type, value);
+		if (ret != null || !type.isPrimitive()) return ret;
+		if (type == Boolean.TYPE) return Boolean.FALSE;
+		if (type == Character.TYPE) return Character.valueOf((char) 0);
+		return Langs.valueOf(type, "0");
+	}
+
+	@Override
+	protected void clear() {
+		if (chars.length > MAX_POOLED_SIZE) chars = new char[INIT_SIZE];
+	}
+
+	/** 映射函数的url请求参数绑定规则，由ArgsBinder在映射阶段生成，请求时只做名称比较及类型转换 */
+	static final class Binding {
+		final String[] names;
+		final Class<?>[] types;
+		// 请求参数对应的函数参数位置
+		final int[] argIndexes;
+		// 预先转换好的默认值
+		final Object[] defaults;
+
+		Binding(String[] names, Class<?>[] types, int[] argIndexes, Object[] defaults) {
+			this.names = names;
+			this.types = types;
+			this.argIndexes = argIndexes;
+			this.defaults = defaults;
+		}
+
+		int indexOf(char[] cs, int len) {
+			for (int i = 0, n = names.length; i < n; ++i) {
+				String name = names[i];
+				if (name.length() != len) continue;
+				int j = 0;
+				while (j < len && name.charAt(j) == cs[j]) ++j;
+				if (j == len) return i;
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package cn.kivensoft.http;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** 映射函数的参数绑定到json格式的请求内容，每个函数最多只能有一个
+ * 使用方法:
+ *     public ApiResult save(@PathParam("id") long id, @RequestBody User user)
+ * @author kiven lee
+ * @version 1.0
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface RequestBody {
+}
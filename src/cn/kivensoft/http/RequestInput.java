@@ -0,0 +1,92 @@
+package cn.kivensoft.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** http请求内容输入流，读取超过最大长度时抛出异常，
+ * 可选的把开头部分内容复制到日志缓冲区，用于调试时记录请求内容
+ * @author kiven lee
+ * @version 1.0
+ */
+final class RequestInput extends InputStream {
+	private final InputStream in;
+	private final long maxSize;
+	private long total;
+	private BytesTee tee;
+
+	/** 创建请求内容输入流
+	 * @param in 原始输入流
+	 * @param maxSize 允许读取的最大长度，小于等于0表示不限制
+	 * @param teeSize 复制到日志缓冲区的最大长度，0表示不复制
+	 */
+	public RequestInput(InputStream in, long maxSize, int teeSize) {
+		this.in = in;
+		this.maxSize = maxSize;
+		if (teeSize > 0) tee = new BytesTee(teeSize);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) {
+			count(1);
+			if (tee != null) tee.write(b);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n > 0) {
+			count(n);
+			if (tee != null) tee.write(b, off, n);
+		}
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/** 读取全部内容到缓冲区
+	 * @param bytes 保存内容的缓冲区
+	 * @return 读取的字节数
+	 */
+	public int readFully(PooledBytes bytes) throws IOException {
+		int n;
+		while (true) {
+			bytes.ensureCapacity(bytes.count + 1, Integer.MAX_VALUE);
+			n = read(bytes.buf, bytes.count, bytes.buf.length - bytes.count);
+			if (n < 0) break;
+			bytes.count += n;
+		}
+		return bytes.count;
+	}
+
+	/** 已读取的字节数 */
+	public long getTotal() {
+		return total;
+	}
+
+	/** 日志缓冲区中的内容，超过长度部分被截断 */
+	public String teeString() {
+		return tee == null ? null : tee.toString();
+	}
+
+	private void count(int n) throws IOException {
+		total += n;
+		if (maxSize > 0 && total > maxSize)
+			throw new TooLargeException(maxSize);
+	}
+
+	/** 请求内容超过允许的最大长度 */
+	static final class TooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		TooLargeException(long maxSize) {
+			super("request body exceeds " + maxSize + " bytes");
+		}
+	}
+}
@@ -10,4 +10,17 @@ import java.lang.annotation.Target;
 public @interface RequestMapping {
 	String value() default "";
 	String desc() default "";
+	/** 是否启用ETag，启用后GET请求的应答带上ETag头，
+	 * 请求头If-None-Match与之匹配时返回不带内容的304，
+	 * ETag优先使用ApiResult.version，未设置时根据序列化后的内容计算
+	 */
+	boolean etag() default false;
+	/** GET请求的应答缓存时间，单位秒，0表示不缓存，
+	 * 以地址及请求参数为键缓存序列化后的结果，只适用于结果只由请求参数决定的函数
+	 */
+	int cacheSeconds() default 0;
+	/** 是否合并并发的相同GET请求，相同地址及请求参数的请求同时只调用一次函数，
+	 * 其它请求共享序列化后的结果，设置了cacheSeconds时自动启用
+	 */
+	boolean coalesce() default false;
 }
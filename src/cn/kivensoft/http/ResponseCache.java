@@ -0,0 +1,130 @@
+package cn.kivensoft.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.kivensoft.util.LruCache;
+
+/** 映射函数的应答缓存，以路由地址加上规范化的请求参数为键，缓存序列化后的json内容，
+ * 命中时不需要调用映射函数及序列化，条目按各自的有效期过期，超过容量时淘汰最久未访问的条目
+ * @author kiven lee
+ * @version 1.0
+ */
+public final class ResponseCache {
+	// 超过该长度的应答不缓存，避免少数大结果挤占缓存
+	private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+
+	private final LruCache<String, Entry> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	ResponseCache(int capacity) {
+		this.cache = new LruCache<String, Entry>(capacity);
+	}
+
+	/** 生成缓存键，请求参数按名称排序，与参数在请求中的顺序无关
+	 * @param pattern 路由地址
+	 * @param query 请求参数，包含路径变量
+	 */
+	static String key(String pattern, Map<String, Object> query) {
+		StringBuilder sb = new StringBuilder(pattern.length() + 64).append(pattern);
+		if (query == null || query.isEmpty()) return sb.toString();
+		String[] names = query.keySet().toArray(new String[query.size()]);
+		Arrays.sort(names);
+		char sep = '?';
+		for (String name : names) {
+			Object value = query.get(name);
+			if (value instanceof ArrayList) {
+				for (Object v : (ArrayList<?>) value)
+					appendParam(sb.append(sep), name, v);
+			}
+			else appendParam(sb.append(sep), name, value);
+			sep = '&';
+		}
+		return sb.toString();
+	}
+
+	// 参数名和值中的分隔符进行转义，避免不同的参数生成相同的键
+	private static void appendParam(StringBuilder sb, String name, Object value) {
+		appendEscaped(sb, name);
+		sb.append('=');
+		if (value != null) appendEscaped(sb, value.toString());
+	}
+
+	private static void appendEscaped(StringBuilder sb, String s) {
+		for (int i = 0, n = s.length(); i < n; ++i) {
+			char c = s.charAt(i);
+			if (c == '&' || c == '=' || c == '%') sb.append('%').append(Integer.toHexString(c));
+			else sb.append(c);
+		}
+	}
+
+	/** 获取未过期的缓存条目，同时记录命中统计 */
+	Entry get(String key) {
+		Entry entry = cache.get(key);
+		if (entry != null && entry.expireAt <= System.currentTimeMillis()) {
+			cache.remove(key);
+			entry = null;
+		}
+		if (entry == null) misses.incrementAndGet();
+		else hits.incrementAndGet();
+		return entry;
+	}
+
+	/** 放入缓存，内容超过最大长度时不放入 */
+	void put(String key, Entry entry) {
+		if (entry.body.length <= MAX_ENTRY_SIZE) cache.put(key, entry);
+	}
+
+	/** 清空缓存，数据发生变化需要立即生效时调用 */
+	public void clear() {
+		cache.clear();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** 缓存的条目数，包括尚未清理的过期条目 */
+	public int getSize() {
+		return cache.size();
+	}
+
+	public int getCapacity() {
+		return cache.cacheSize();
+	}
+
+	/** 命中率，没有访问时返回0 */
+	public double getHitRatio() {
+		long h = hits.get(), total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return "ResponseCache[size=" + cache.size() + "/" + cache.cacheSize()
+				+ ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+	}
+
+	/** 缓存条目，内容创建后不再修改，可以被多个请求同时发送 */
+	static final class Entry {
+		final byte[] body;
+		final String etag;
+		final long expireAt;
+		// 结果的错误码，用于统计
+		final int code;
+
+		Entry(byte[] body, String etag, long expireAt, int code) {
+			this.body = body;
+			this.etag = etag;
+			this.expireAt = expireAt;
+			this.code = code;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package cn.kivensoft.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/** http应答内容输出流，内容先写入对象池中的缓冲区，
+ * 全部内容不超过阈值时以Content-Length方式一次性发送，
+ * 超过阈值时立即发送应答头并改用chunked方式边写边发送，避免大结果整体驻留内存，
+ * 客户端支持压缩且内容超过压缩阈值时，后续内容经过压缩后再按上述方式发送
+ * @author kiven lee
+ * @version 1.0
+ */
+final class ResponseOutput extends OutputStream {
+	private final HttpExchange he;
+	private final int status;
+	private final int threshold;
+	// 原始内容缓冲区
+	private PooledBytes bytes;
+	private boolean chunked;
+	private BytesTee tee;
+	// 已发送应答头后的实际输出流
+	private OutputStream out;
+	private final byte[] one = new byte[1];
+
+	// 压缩格式，为null表示不压缩
+	private final String encoding;
+	private final int compressThreshold;
+	private Compressor compressor;
+	// 压缩后内容的缓冲区
+	private PooledBytes zbytes;
+	private long rawTotal, compressedTotal, compressNanos;
+
+	/** 创建应答输出流
+	 * @param he http上下文
+	 * @param status http状态码
+	 * @param threshold 缓冲区最大长度，超过该长度后使用chunked方式发送
+	 * @param teeSize 复制到日志缓冲区的最大长度，0表示不复制
+	 * @param encoding 压缩格式，null表示不压缩
+	 * @param compressThreshold 内容超过该长度时进行压缩
+	 */
+	public ResponseOutput(HttpExchange he, int status, int threshold, int teeSize,
+			String encoding, int compressThreshold) {
+		this.he = he;
+		this.status = status;
+		this.threshold = threshold;
+		this.bytes = PooledBytes.get();
+		if (teeSize > 0) tee = new BytesTee(teeSize);
+		this.encoding = encoding;
+		this.compressThreshold = compressThreshold;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		one[0] = (byte) b;
+		write(one, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (tee != null) tee.write(b, off, len);
+		rawTotal += len;
+		if (compressor != null) {
+			compress(b, off, len);
+			return;
+		}
+		if (out != null) {
+			out.write(b, off, len);
+			return;
+		}
+
+		int limit = encoding != null ? compressThreshold : threshold;
+		if (bytes.count + len <= limit) {
+			bytes.ensureCapacity(bytes.count + len, limit);
+			System.arraycopy(b, off, bytes.buf, bytes.count, len);
+			bytes.count += len;
+		}
+		else if (encoding != null) {
+			// 超过压缩阈值，已缓存的内容和当前内容一起压缩
+			startCompress();
+			compress(bytes.buf, 0, bytes.count);
+			bytes.count = 0;
+			compress(b, off, len);
+		}
+		else {
+			commitChunked(bytes);
+			out.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (out != null) out.flush();
+	}
+
+	/** 结束输出，未发送应答头时以Content-Length方式发送缓冲区的全部内容 */
+	@Override
+	public void close() throws IOException {
+		if (bytes == null) return;
+		try {
+			if (compressor != null) {
+				long t = System.nanoTime();
+				compressor.finish(compressedSink);
+				compressNanos += System.nanoTime() - t;
+			}
+			if (out == null) {
+				PooledBytes pb = compressor != null ? zbytes : bytes;
+				int count = pb.count;
+				he.sendResponseHeaders(status, count == 0 ? -1 : count);
+				out = he.getResponseBody();
+				if (count > 0) out.write(pb.buf, 0, count);
+			}
+			out.close();
+		}
+		finally {
+			release();
+		}
+	}
+
+	/** 出错时放弃输出并关闭连接 */
+	public void abort() {
+		release();
+		he.close();
+	}
+
+	/** 日志缓冲区中的应答内容，超过长度部分被截断 */
+	public String teeString() {
+		return tee == null ? null : tee.toString();
+	}
+
+	/** 是否已经改用chunked方式发送 */
+	public boolean isChunked() {
+		return chunked;
+	}
+
+	/** 是否经过压缩 */
+	public boolean isCompressed() {
+		return compressedTotal > 0;
+	}
+
+	/** 原始内容长度 */
+	public long getRawBytes() {
+		return rawTotal;
+	}
+
+	/** 压缩后的内容长度 */
+	public long getCompressedBytes() {
+		return compressedTotal;
+	}
+
+	/** 压缩耗费的时间，单位纳秒 */
+	public long getCompressNanos() {
+		return compressNanos;
+	}
+
+	private void startCompress() throws IOException {
+		Headers headers = he.getResponseHeaders();
+		headers.set("Content-Encoding", encoding);
+		headers.add("Vary", "Accept-Encoding");
+		compressor = Compressor.get(encoding);
+		zbytes = PooledBytes.get();
+		compressor.begin(compressedSink);
+	}
+
+	private void compress(byte[] b, int off, int len) throws IOException {
+		long t = System.nanoTime();
+		compressor.write(b, off, len, compressedSink);
+		compressNanos += System.nanoTime() - t;
+	}
+
+	private void commitChunked(PooledBytes pending) throws IOException {
+		he.sendResponseHeaders(status, 0);
+		out = he.getResponseBody();
+		if (pending.count > 0) out.write(pending.buf, 0, pending.count);
+		pending.count = 0;
+		chunked = true;
+	}
+
+	private void release() {
+		if (bytes == null) return;
+		bytes.recycle();
+		bytes = null;
+		if (zbytes != null) {
+			zbytes.recycle();
+			zbytes = null;
+		}
+		if (compressor != null) {
+			compressor.recycle();
+			compressor = null;
+		}
+	}
+
+	/** 压缩后的内容，同样先缓存，超过阈值后改为chunked方式发送 */
+	private final OutputStream compressedSink = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			one[0] = (byte) b;
+			write(one, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			compressedTotal += len;
+			if (out != null) out.write(b, off, len);
+			else if (zbytes.count + len <= threshold) {
+				zbytes.ensureCapacity(zbytes.count + len, threshold);
+				System.arraycopy(b, off, zbytes.buf, zbytes.count, len);
+				zbytes.count += len;
+			}
+			else {
+				commitChunked(zbytes);
+				out.write(b, off, len);
+			}
+		}
+	};
+}
@@ -0,0 +1,164 @@
+package cn.kivensoft.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import cn.kivensoft.metrics.LatencyHistogram;
+import cn.kivensoft.metrics.StripedCounter;
+
+/** 单个映射地址的访问统计，包括请求数、处理中的请求数、各个http状态及错误码的次数、
+ * 耗时直方图及压缩统计，请求处理过程中的记录都不分配内存
+ * @author kiven lee
+ * @version 1.0
+ */
+public final class RouteStats {
+	// 服务内部错误码的起始值，与SimpleHttpServer.EError一致
+	static final int ERROR_BASE = 100000;
+	static final int ERROR_SLOTS = 16;
+	private static final int MIN_STATUS = 100, MAX_STATUS = 599;
+
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter inFlight = new StripedCounter();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	// 按http状态码计数，第一次出现时创建
+	private final AtomicReferenceArray<StripedCounter> statuses =
+			new AtomicReferenceArray<StripedCounter>(MAX_STATUS - MIN_STATUS + 1);
+	// 按错误码计数，最后一个位置是服务内部错误码之外的业务错误
+	private final AtomicLongArray errors = new AtomicLongArray(ERROR_SLOTS + 1);
+	private final AtomicLong notModified = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong compressedResponses = new AtomicLong();
+	private final AtomicLong rawBytes = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+	private final AtomicLong compressNanos = new AtomicLong();
+
+	/** 请求开始处理 */
+	void begin() {
+		hits.increment();
+		inFlight.increment();
+	}
+
+	/** 请求处理完成，记录耗时 */
+	void end(long nanos) {
+		inFlight.decrement();
+		latency.record(nanos);
+	}
+
+	/** 记录应答的http状态及结果的错误码 */
+	void response(int status, int code) {
+		if (status >= MIN_STATUS && status <= MAX_STATUS) {
+			int i = status - MIN_STATUS;
+			StripedCounter c = statuses.get(i);
+			if (c == null) {
+				statuses.compareAndSet(i, null, new StripedCounter());
+				c = statuses.get(i);
+			}
+			c.increment();
+		}
+		if (code != 0) {
+			int i = code - ERROR_BASE;
+			errors.incrementAndGet(i >= 0 && i < ERROR_SLOTS ? i : ERROR_SLOTS);
+		}
+	}
+
+	void notModified() {
+		notModified.incrementAndGet();
+		response(304, 0);
+	}
+
+	void coalesced() {
+		coalesced.incrementAndGet();
+	}
+
+	void compressed(long raw, long compressed, long nanos) {
+		compressedResponses.incrementAndGet();
+		rawBytes.addAndGet(raw);
+		compressedBytes.addAndGet(compressed);
+		compressNanos.addAndGet(nanos);
+	}
+
+	/** 访问次数 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/** 正在处理的请求数 */
+	public long getInFlight() {
+		return inFlight.sum();
+	}
+
+	/** 请求耗时直方图，从开始处理到应答发送完成 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/** 指定http状态的应答次数 */
+	public long getStatusCount(int status) {
+		if (status < MIN_STATUS || status > MAX_STATUS) return 0;
+		StripedCounter c = statuses.get(status - MIN_STATUS);
+		return c == null ? 0 : c.sum();
+	}
+
+	/** 出现过的http状态码，由小到大排列 */
+	public int[] getStatuses() {
+		int n = 0;
+		for (int i = 0, len = statuses.length(); i < len; ++i)
+			if (statuses.get(i) != null) ++n;
+		int[] ret = new int[n];
+		for (int i = 0, j = 0, len = statuses.length(); i < len && j < n; ++i)
+			if (statuses.get(i) != null) ret[j++] = i + MIN_STATUS;
+		return ret;
+	}
+
+	/** 指定错误码的次数，服务内部错误码之外的错误码统一计数 */
+	public long getErrorCount(int code) {
+		int i = code - ERROR_BASE;
+		return errors.get(i >= 0 && i < ERROR_SLOTS ? i : ERROR_SLOTS);
+	}
+
+	/** ETag匹配返回304的次数 */
+	public long getNotModified() {
+		return notModified.get();
+	}
+
+	/** 等待并共享其它相同请求结果的次数 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/** 经过压缩的应答次数 */
+	public long getCompressedResponses() {
+		return compressedResponses.get();
+	}
+
+	/** 压缩应答的原始字节总数 */
+	public long getRawBytes() {
+		return rawBytes.get();
+	}
+
+	/** 压缩应答压缩后的字节总数 */
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	/** 压缩耗费的cpu时间总数，单位纳秒 */
+	public long getCompressNanos() {
+		return compressNanos.get();
+	}
+
+	/** 压缩率，压缩后长度/原始长度，没有压缩过的应答时返回1 */
+	public double getCompressionRatio() {
+		long raw = rawBytes.get();
+		return raw == 0 ? 1 : (double) compressedBytes.get() / raw;
+	}
+
+	@Override
+	public String toString() {
+		return "RouteStats[hits=" + hits.sum() + ", inFlight=" + inFlight.sum()
+				+ ", p99=" + latency.getPercentile(99) + "us, notModified=" + notModified.get()
+				+ ", coalesced=" + coalesced.get() + ", compressed=" + compressedResponses.get()
+				+ ", ratio=" + getCompressionRatio() + ", compressMs="
+				+ compressNanos.get() / 1000000 + "]";
+	}
+}
@@ -0,0 +1,199 @@
+package cn.kivensoft.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** 基于路径分段的前缀树路由表，在映射阶段构建，请求时按路径逐段匹配
+ * 匹配时忽略大小写且不产生新的字符串对象，支持 /user/{id} 形式的路径变量，
+ * 查找耗时只与请求路径长度相关，与已映射的地址数量无关
+ * @author kiven lee
+ * @version 1.0
+ */
+final class Router<T> {
+	private final Node<T> root = new Node<T>(null, 0);
+	private final List<Route<T>> routes = new ArrayList<Route<T>>();
+
+	/** 添加路由
+	 * @param pattern 地址模板，路径变量使用{name}格式
+	 * @param target 路由对应的处理对象
+	 * @return 新增的路由, 如果地址模板已存在则返回null
+	 */
+	public Route<T> add(String pattern, T target) {
+		Node<T> node = root;
+		int len = pattern.length(), start = 0;
+		while ((start = nextSegment(pattern, start, len)) < len) {
+			int end = segmentEnd(pattern, start, len);
+			if (isVariable(pattern, start, end)) {
+				if (node.varChild == null) node.varChild = new Node<T>(null, 0);
+				node = node.varChild;
+			}
+			else node = node.addChild(pattern, start, end);
+			start = end;
+		}
+		if (node.route != null) return null;
+
+		Route<T> route = new Route<T>(pattern, target, variableNames(pattern));
+		node.route = route;
+		routes.add(route);
+		return route;
+	}
+
+	/** 获取地址模板中的路径变量名，按出现的顺序排列 */
+	public static String[] variableNames(String pattern) {
+		List<String> vars = null;
+		int len = pattern.length(), start = 0;
+		while ((start = nextSegment(pattern, start, len)) < len) {
+			int end = segmentEnd(pattern, start, len);
+			if (isVariable(pattern, start, end)) {
+				if (vars == null) vars = new ArrayList<String>();
+				vars.add(pattern.substring(start + 1, end - 1));
+			}
+			start = end;
+		}
+		return vars == null ? NO_VARS : vars.toArray(new String[vars.size()]);
+	}
+
+	/** 查找请求路径对应的路由，忽略大小写，不分配内存
+	 * @param path 请求路径
+	 * @return 找到的路由，找不到返回null
+	 */
+	public Route<T> find(String path) {
+		return find(root, path, 0, path.length());
+	}
+
+	/** 按添加顺序返回所有路由 */
+	public List<Route<T>> routes() {
+		return Collections.unmodifiableList(routes);
+	}
+
+	public int size() {
+		return routes.size();
+	}
+
+	// 递归匹配，静态分段优先于路径变量，静态分支匹配失败时回溯到变量分支
+	private static <T> Route<T> find(Node<T> node, String path, int start, int len) {
+		start = nextSegment(path, start, len);
+		if (start >= len) return node.route;
+
+		int end = segmentEnd(path, start, len);
+		Node<T> child = node.findChild(path, start, end);
+		if (child != null) {
+			Route<T> r = find(child, path, end, len);
+			if (r != null) return r;
+		}
+		return node.varChild == null ? null : find(node.varChild, path, end, len);
+	}
+
+	private static boolean isVariable(String pattern, int start, int end) {
+		return pattern.charAt(start) == '{' && pattern.charAt(end - 1) == '}';
+	}
+
+	private static int nextSegment(String path, int start, int len) {
+		while (start < len && path.charAt(start) == '/') ++start;
+		return start;
+	}
+
+	private static int segmentEnd(String path, int start, int len) {
+		int idx = path.indexOf('/', start);
+		return idx < 0 ? len : idx;
+	}
+
+	// 忽略大小写的分段哈希值，用于快速排除不匹配的子节点
+	private static int hash(String s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; ++i)
+			h = 31 * h + Character.toLowerCase(s.charAt(i));
+		return h;
+	}
+
+	private static final String[] NO_VARS = new String[0];
+
+	private static final class Node<T> {
+		final String segment;
+		final int hash;
+		Node<T>[] children;
+		Node<T> varChild;
+		Route<T> route;
+
+		Node(String segment, int hash) {
+			this.segment = segment;
+			this.hash = hash;
+		}
+
+		Node<T> findChild(String path, int start, int end) {
+			if (children == null) return null;
+			int h = hash(path, start, end), len = end - start;
+			for (int i = 0, n = children.length; i < n; ++i) {
+				Node<T> c = children[i];
+				if (c.hash == h && c.segment.length() == len
+						&& c.segment.regionMatches(true, 0, path, start, len))
+					return c;
+			}
+			return null;
+		}
+
+		Node<T> addChild(String path, int start, int end) {
+			Node<T> c = findChild(path, start, end);
+			if (c != null) return c;
+			c = new Node<T>(path.substring(start, end), hash(path, start, end));
+			int n = children == null ? 0 : children.length;
+			@SuppressWarnings("unchecked")
+			Node<T>[] cs = (Node<T>[]) new Node<?>[n + 1];
+			if (n > 0) System.arraycopy(children, 0, cs, 0, n);
+			cs[n] = c;
+			children = cs;
+			return c;
+		}
+	}
+
+	/** 路由条目，包含地址模板、处理对象、路径变量名及访问统计 */
+	static final class Route<T> {
+		final String pattern;
+		final T target;
+		final String[] varNames;
+		final RouteStats stats = new RouteStats();
+
+		Route(String pattern, T target, String[] varNames) {
+			this.pattern = pattern;
+			this.target = target;
+			this.varNames = varNames;
+		}
+
+		public boolean hasVariables() {
+			return varNames.length > 0;
+		}
+
+		/** 从匹配成功的请求路径中提取路径变量，只有带变量的路由才会分配内存，
+		 * 没有变量时返回不可修改的空Map
+		 */
+		public Map<String, String> variables(String path) {
+			if (varNames.length == 0) return Collections.emptyMap();
+			Map<String, String> ret = new LinkedHashMap<String, String>();
+			String[] values = variableValues(path);
+			for (int i = 0; i < values.length; ++i)
+				ret.put(varNames[i], values[i]);
+			return ret;
+		}
+
+		/** 从匹配成功的请求路径中按varNames的顺序提取路径变量值 */
+		public String[] variableValues(String path) {
+			if (varNames.length == 0) return NO_VARS;
+			String[] ret = new String[varNames.length];
+			int len = path.length(), pstart = 0, vi = 0;
+			int plen = pattern.length(), start = 0;
+			while ((pstart = nextSegment(pattern, pstart, plen)) < plen) {
+				int pend = segmentEnd(pattern, pstart, plen);
+				start = nextSegment(path, start, len);
+				int end = segmentEnd(path, start, len);
+				if (isVariable(pattern, pstart, pend))
+					ret[vi++] = path.substring(start, end);
+				pstart = pend;
+				start = end;
+			}
+			return ret;
+		}
+	}
+}
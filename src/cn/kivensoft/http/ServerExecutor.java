@@ -0,0 +1,120 @@
+package cn.kivensoft.http;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.kivensoft.util.MyLogger;
+
+/** http服务内置的有界工作线程池，线程数和等待队列长度都有上限，
+ * 饱和时立即拒绝，由SimpleHttpServer返回503及Retry-After，避免负载突增时无限创建线程
+ * @author kiven lee
+ * @version 1.0
+ */
+public class ServerExecutor extends ThreadPoolExecutor {
+	private static final int DEFAULT_RETRY_AFTER = 1;
+	private static final AtomicInteger poolNumber = new AtomicInteger();
+
+	private final int queueCapacity;
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private int retryAfter = DEFAULT_RETRY_AFTER;
+
+	/** 创建有界工作线程池，核心线程数为cpu核数，最大线程数为核数的8倍，队列长度为最大线程数的4倍 */
+	public ServerExecutor() {
+		this(Runtime.getRuntime().availableProcessors(),
+				Runtime.getRuntime().availableProcessors() * 8,
+				Runtime.getRuntime().availableProcessors() * 32);
+	}
+
+	/** 创建有界工作线程池
+	 * @param coreSize 核心线程数
+	 * @param maxSize 最大线程数
+	 * @param queueCapacity 等待队列长度，核心线程全忙时请求进入队列，队列满时才创建新线程
+	 */
+	public ServerExecutor(int coreSize, int maxSize, int queueCapacity) {
+		super(coreSize, maxSize, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity),
+				new WorkerThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+		this.queueCapacity = queueCapacity;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		try {
+			super.execute(command);
+		} catch (RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/** 创建每个任务一个虚拟线程的线程池，运行时不支持虚拟线程(java21以下)时返回null
+	 * @return 虚拟线程池或null
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			MyLogger.warn(e, "create virtual thread executor failed.");
+			return null;
+		}
+	}
+
+	/** 等待队列中的任务数 */
+	public int getQueueDepth() {
+		return getQueue().size();
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/** 正在执行任务的工作线程数 */
+	public int getActiveWorkers() {
+		return getActiveCount();
+	}
+
+	/** 因饱和被拒绝的任务总数 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	/** 设置饱和拒绝时建议客户端重试的等待时间
+	 * @param retryAfter 等待秒数，写入应答的Retry-After头
+	 */
+	public void setRetryAfter(int retryAfter) {
+		this.retryAfter = retryAfter;
+	}
+
+	@Override
+	public String toString() {
+		return "ServerExecutor[active=" + getActiveCount() + ", pool=" + getPoolSize()
+				+ "/" + getMaximumPoolSize() + ", queue=" + getQueueDepth()
+				+ "/" + queueCapacity + ", rejected=" + rejectedCount.get() + "]";
+	}
+
+	private static final class WorkerThreadFactory implements ThreadFactory {
+		private final String prefix = "http-worker-" + poolNumber.incrementAndGet() + "-";
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
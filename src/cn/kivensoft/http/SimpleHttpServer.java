@@ -1,22 +1,29 @@
 package cn.kivensoft.http;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.Reader;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.URI;
-import java.net.URLDecoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.serializer.SerializerFeature;
@@ -25,10 +32,14 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
-import cn.kivensoft.function.Supplier;
+import cn.kivensoft.metrics.MetricsSource;
+import cn.kivensoft.metrics.PrometheusWriter;
+import cn.kivensoft.metrics.SlowLog;
+import cn.kivensoft.metrics.StripedCounter;
+import cn.kivensoft.trace.Trace;
+import cn.kivensoft.trace.Tracer;
 import cn.kivensoft.util.Fmt;
 import cn.kivensoft.util.MyLogger;
-import cn.kivensoft.util.ObjectPool;
 import cn.kivensoft.util.ScanPackage;
 
 public class SimpleHttpServer implements HttpHandler {
@@ -36,33 +47,400 @@ public class SimpleHttpServer implements HttpHandler {
 	private static final String DEFAULT_SERVER_NAME = "SimpleHttpServer";
 	private static final String HTTP_VERSION = "1.0";
 	private static final String CTRL_NAME = "Controller";
+	private static final int DEFAULT_STREAM_THRESHOLD = 64 * 1024;
+	private static final int DEFAULT_COMPRESS_THRESHOLD = 2048;
+	private static final int DEFAULT_RESPONSE_CACHE_SIZE = 1024;
+	private static final int DEFAULT_MAX_BODY_SIZE = 8 * 1024 * 1024;
+	private static final int DEFAULT_BODY_LOG_LIMIT = 1024;
+	private static final String DEFAULT_METRICS_PATH = "/metrics";
+	private static final String DEFAULT_HEALTH_PATH = "/health";
+	private static final long DEFAULT_ASYNC_TIMEOUT = 30000;
+	private static final long DEFAULT_COALESCE_TIMEOUT = 5000;
+	private static final Charset UTF8_CHARSET = Charset.forName(UTF_8);
 	
 	private static enum EError { 
-		系统内部错误, 参数解析失败, 请求的地址不存在;
+		系统内部错误, 参数解析失败, 请求的地址不存在, 请求内容过大, 服务器繁忙, 请求处理超时, 服务正在停止;
 		public int code() { return 100000 + ordinal(); }
 	}
 
 	private HttpServer httpServer;
-	private Map<String, MethodInfo> handles = new HashMap<String, MethodInfo>();
+	// 使用nio引擎时替代httpServer
+	private NioHttpEngine nioEngine;
+	private boolean useNio;
+	private int eventLoops;
+	// 监听队列长度，0为系统缺省值
+	private int backlog;
+	private int acceptors = 1;
+	private Router<MethodInfo> handles = new Router<MethodInfo>();
 	private String serverName;
+	// 由本类分派请求的线程池(有界线程池或虚拟线程池)，为null时在HttpServer的线程中直接处理请求
+	private ExecutorService workers;
+	// 启用虚拟线程时内部创建的线程池，停止服务时关闭
+	private ExecutorService virtualExecutor;
+	private boolean virtualThreads;
+	// 异步结果的超时时间，单位毫秒
+	private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+	// 合并请求时等待领头请求的最长时间，单位毫秒
+	private volatile long coalesceTimeout = DEFAULT_COALESCE_TIMEOUT;
+	// 异步结果超时检测的定时器，第一次返回异步结果时创建
+	private ScheduledExecutorService asyncTimer;
+	// 应答内容超过该长度时使用chunked方式流式发送
+	private int streamThreshold = DEFAULT_STREAM_THRESHOLD;
+	// 应答内容超过该长度且客户端支持时进行压缩，0表示不压缩
+	private int compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+	// 映射函数的应答缓存，只用于注解中设置了缓存时间的GET请求
+	private ResponseCache responseCache = new ResponseCache(DEFAULT_RESPONSE_CACHE_SIZE);
+	// 合并并发的相同GET请求
+	private final SingleFlight singleFlight = new SingleFlight();
+	// 请求内容的最大长度，超过时返回413
+	private long maxBodySize = DEFAULT_MAX_BODY_SIZE;
+	// 调试日志中记录的请求内容最大长度
+	private int bodyLogLimit = DEFAULT_BODY_LOG_LIMIT;
+	// 调试日志中记录的应答内容最大长度
+	private int resultLogLimit = DEFAULT_BODY_LOG_LIMIT;
+	// prometheus格式指标的访问地址，为null时不提供
+	private String metricsPath = DEFAULT_METRICS_PATH;
+	// 慢请求及慢SQL记录的访问地址，为null时不提供
+	private String slowLogPath;
+	// 健康检查地址，为null时不提供
+	private String healthPath = DEFAULT_HEALTH_PATH;
+	// 正在平滑停止服务，健康检查返回503，应答后关闭连接
+	private volatile boolean shuttingDown;
+	// 已接收未完成的请求数，包括在线程池中排队的请求
+	private final StripedCounter pending = new StripedCounter();
+	// 没有匹配到映射地址的请求统计
+	private final RouteStats unmatchedStats = new RouteStats();
+	// 附加的指标来源，例如数据库连接池
+	private final List<MetricsSource> metricsSources = new CopyOnWriteArrayList<MetricsSource>();
 
 	public void start(int port, ExecutorService executorService) throws Exception {
 		start(null, port, executorService);
 	}
 	
+	/** 启动http服务
+	 * @param serverName 服务名称，用于应答头的Server
+	 * @param port 监听端口
+	 * @param executorService 处理请求的线程池，为ServerExecutor时由本类进行请求分派，
+	 *        饱和时直接返回503，其它类型的线程池直接交给HttpServer使用，
+	 *        启用虚拟线程且运行时支持时忽略该参数
+	 * @throws Exception
+	 */
 	public void start(String serverName, int port, ExecutorService executorService) throws Exception {
 		if (serverName == null || serverName.isEmpty())
 			serverName = DEFAULT_SERVER_NAME;
 		this.serverName = serverName + "/" + HTTP_VERSION;
 
-		httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+		// 虚拟线程池及有界线程池在handle中分派，HttpServer使用自身的分派线程读取请求头
+		if (virtualThreads) {
+			virtualExecutor = ServerExecutor.newVirtualThreadExecutor();
+			if (virtualExecutor == null)
+				MyLogger.warn("virtual threads unsupported by java {}, use default executor.",
+						System.getProperty("java.version"));
+		}
+		if (virtualExecutor != null)
+			workers = virtualExecutor;
+		else if (executorService instanceof ServerExecutor)
+			workers = executorService;
+		ExecutorService engineExecutor = workers == null ? executorService : null;
+
+		if (useNio) {
+			nioEngine = new NioHttpEngine(new InetSocketAddress(port), this,
+					engineExecutor, eventLoops, maxBodySize, backlog, acceptors);
+			nioEngine.start();
+			return;
+		}
+		if (acceptors > 1)
+			MyLogger.warn("HttpServer support only one acceptor, use nio engine for multi acceptors.");
+		httpServer = HttpServer.create(new InetSocketAddress(port), backlog);
 		httpServer.createContext("/", this);
-		if (executorService !=  null) httpServer.setExecutor(executorService);
+		if (engineExecutor != null) httpServer.setExecutor(engineExecutor);
 		httpServer.start();
 	}
 
 	public void stop() {
-		httpServer.stop(0);
+		stopEngine();
+		stopExecutors();
+	}
+
+	/** 平滑停止服务，用于滚动部署时不中断正在处理的请求，依次执行:
+	 *     1. 健康检查返回503，其它请求正常处理，等待graceMillis让负载均衡摘除本节点
+	 *     2. nio引擎关闭监听不再接收新连接，已有连接上的应答带Connection: close，
+	 *        HttpServer没有单独关闭监听的接口，继续接收请求直到步骤4
+	 *     3. 等待已接收的请求(包括在线程池中排队的)处理完成，最多等待timeoutMillis
+	 *     4. 关闭网络连接，按参数顺序关闭resources(例如数据库连接池)，最后关闭线程池
+	 * @param graceMillis 健康检查失败后继续接收请求的时间，单位毫秒
+	 * @param timeoutMillis 等待请求处理完成的最长时间，单位毫秒
+	 * @param resources 请求处理完成后按顺序关闭的资源
+	 * @return 超时后仍未完成的请求数，0表示全部正常完成
+	 */
+	public int shutdown(long graceMillis, long timeoutMillis, Closeable... resources) {
+		shuttingDown = true;
+		MyLogger.info("shutting down, health check failing, stop accepting after {}ms.", graceMillis);
+		sleep(graceMillis);
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		// HttpServer.stop会等待到超时(jdk21之前总是等满)后强制关闭所有请求，
+		// 包括在线程池中排队的，因此先等待请求处理完成，再由stopEngine关闭
+		if (nioEngine != null) nioEngine.stopAccepting();
+		long remaining;
+		while ((remaining = pending.sum()) > 0 && System.currentTimeMillis() < deadline
+				&& !Thread.currentThread().isInterrupted())
+			sleep(10);
+		if (remaining > 0)
+			MyLogger.warn("shutdown timeout after {}ms, {} requests unfinished.", timeoutMillis, remaining);
+		else MyLogger.info("all requests finished, closing resources.");
+
+		stopEngine();
+		for (Closeable res : resources) {
+			try {
+				if (res != null) res.close();
+			} catch (Exception e) {
+				MyLogger.warn(e, "close {} has error.", res);
+			}
+		}
+		if (workers != null && workers != virtualExecutor) workers.shutdown();
+		stopExecutors();
+		return (int) Math.max(remaining, 0);
+	}
+
+	/** 是否正在平滑停止服务 */
+	public boolean isShuttingDown() {
+		return shuttingDown;
+	}
+
+	/** 已接收未完成的请求数，包括在线程池中排队的请求 */
+	public long getPendingRequests() {
+		return pending.sum();
+	}
+
+	private void stopEngine() {
+		if (nioEngine != null) {
+			nioEngine.stop();
+			nioEngine = null;
+		}
+		else if (httpServer != null) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+	}
+
+	private void stopExecutors() {
+		if (virtualExecutor != null) {
+			virtualExecutor.shutdown();
+			virtualExecutor = null;
+		}
+		synchronized (this) {
+			if (asyncTimer != null) {
+				asyncTimer.shutdownNow();
+				asyncTimer = null;
+			}
+		}
+	}
+
+	public boolean isUseNio() {
+		return useNio;
+	}
+
+	/** 设置是否使用内置的nio引擎替代jdk自带的HttpServer，必须在start之前调用，
+	 * 控制器的映射及调用方式不变
+	 * @param useNio 是否使用nio引擎
+	 */
+	public void setUseNio(boolean useNio) {
+		this.useNio = useNio;
+	}
+
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	/** 设置nio引擎的事件循环线程数，必须在start之前调用
+	 * @param eventLoops 线程数，小于等于0时使用cpu核数
+	 */
+	public void setEventLoops(int eventLoops) {
+		this.eventLoops = eventLoops;
+	}
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	/** 设置监听队列长度，必须在start之前调用
+	 * @param backlog 队列长度，小于等于0时使用系统缺省值
+	 */
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	/** 设置nio引擎的接收线程数，大于1时每个接收线程使用SO_REUSEPORT独立监听同一端口，
+	 * 由内核把连接分散到各个接收线程，系统不支持时退化为1个，必须在start之前调用
+	 * @param acceptors 接收线程数
+	 */
+	public void setAcceptors(int acceptors) {
+		this.acceptors = acceptors;
+	}
+
+	public long getAsyncTimeout() {
+		return asyncTimeout;
+	}
+
+	/** 设置控制器返回AsyncResult时等待结果的最长时间，超时返回504
+	 * @param asyncTimeout 超时时间，单位毫秒，小于等于0表示不限制
+	 */
+	public void setAsyncTimeout(long asyncTimeout) {
+		this.asyncTimeout = asyncTimeout;
+	}
+
+	public long getCoalesceTimeout() {
+		return coalesceTimeout;
+	}
+
+	/** 设置合并请求时等待领头请求完成的最长时间，超时后自行调用映射函数，
+	 * 避免领头请求卡住时占满所有工作线程
+	 * @param coalesceTimeout 等待时间，单位毫秒，小于等于0表示不限制
+	 */
+	public void setCoalesceTimeout(long coalesceTimeout) {
+		this.coalesceTimeout = coalesceTimeout;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/** 设置是否每个请求使用一个虚拟线程处理，适用于控制器中有阻塞的数据库访问等场景，
+	 * 运行时不支持虚拟线程时仍然使用start传入的线程池，必须在start之前调用
+	 * @param virtualThreads 是否启用虚拟线程
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/** 是否实际运行在虚拟线程模式 */
+	public boolean isVirtualThreadsActive() {
+		return virtualExecutor != null;
+	}
+
+	public int getStreamThreshold() {
+		return streamThreshold;
+	}
+
+	/** 设置应答内容流式发送的阈值，小于该长度的应答使用Content-Length方式发送，
+	 * 超过该长度的应答边序列化边以chunked方式发送
+	 * @param streamThreshold 阈值，单位字节
+	 */
+	public void setStreamThreshold(int streamThreshold) {
+		if (streamThreshold < 0)
+			throw new IllegalArgumentException("streamThreshold must not be negative.");
+		this.streamThreshold = streamThreshold;
+	}
+
+	public int getCompressThreshold() {
+		return compressThreshold;
+	}
+
+	/** 设置应答内容压缩的阈值，客户端请求头Accept-Encoding包含gzip或deflate，
+	 * 且应答内容超过该长度时进行压缩，压缩器使用对象池复用
+	 * @param compressThreshold 阈值，单位字节，0表示禁用压缩
+	 */
+	public void setCompressThreshold(int compressThreshold) {
+		if (compressThreshold < 0)
+			throw new IllegalArgumentException("compressThreshold must not be negative.");
+		this.compressThreshold = compressThreshold;
+	}
+
+	/** 应答缓存，可获取命中统计或清空缓存 */
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/** 设置应答缓存的最大条目数，超过时淘汰最久未访问的条目，设置后原有缓存内容被丢弃
+	 * @param size 最大条目数
+	 */
+	public void setResponseCacheSize(int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("response cache size must be positive.");
+		this.responseCache = new ResponseCache(size);
+	}
+
+	public long getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	/** 设置请求内容的最大长度，超过该长度的请求返回413错误
+	 * @param maxBodySize 最大长度，单位字节，小于等于0表示不限制
+	 */
+	public void setMaxBodySize(long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	public int getBodyLogLimit() {
+		return bodyLogLimit;
+	}
+
+	/** 设置调试日志中记录的请求内容最大长度，超过部分截断
+	 * @param bodyLogLimit 最大长度，单位字节，0表示不记录请求内容
+	 */
+	public void setBodyLogLimit(int bodyLogLimit) {
+		this.bodyLogLimit = bodyLogLimit;
+	}
+
+	public int getResultLogLimit() {
+		return resultLogLimit;
+	}
+
+	/** 设置调试日志中记录的应答内容最大长度，日志内容取自实际发送的字节，不再重复序列化
+	 * @param resultLogLimit 最大长度，单位字节，0表示不记录应答内容
+	 */
+	public void setResultLogLimit(int resultLogLimit) {
+		this.resultLogLimit = resultLogLimit;
+	}
+
+	public String getMetricsPath() {
+		return metricsPath;
+	}
+
+	/** 设置prometheus文本格式指标的访问地址，优先于映射地址匹配，
+	 * 内容包括每个映射地址的请求数、各个http状态及错误码的次数、处理中的请求数、耗时直方图等
+	 * @param metricsPath 访问地址，为null或空串时不提供指标
+	 */
+	public void setMetricsPath(String metricsPath) {
+		this.metricsPath = metricsPath == null || metricsPath.isEmpty() ? null : metricsPath;
+	}
+
+	/** 增加附加的指标来源，输出http指标时一并输出 */
+	public void addMetricsSource(MetricsSource source) {
+		metricsSources.add(source);
+	}
+
+	public void removeMetricsSource(MetricsSource source) {
+		metricsSources.remove(source);
+	}
+
+	public String getHealthPath() {
+		return healthPath;
+	}
+
+	/** 设置健康检查地址，优先于映射地址匹配，正常时返回200，平滑停止服务期间返回503
+	 * @param healthPath 访问地址，为null或空串时不提供
+	 */
+	public void setHealthPath(String healthPath) {
+		this.healthPath = healthPath == null || healthPath.isEmpty() ? null : healthPath;
+	}
+
+	public String getSlowLogPath() {
+		return slowLogPath;
+	}
+
+	/** 设置慢请求及慢SQL记录的访问地址，优先于映射地址匹配，返回json格式的记录，最新的在前，
+	 * 请求参数type为request或sql时只返回该类型的记录，阈值及缓冲区大小通过SlowLog设置，
+	 * 记录中包含SQL语句及参数，缺省不提供，需要时应设置为不对外公开的地址
+	 * @param slowLogPath 访问地址，为null或空串时不提供
+	 */
+	public void setSlowLogPath(String slowLogPath) {
+		this.slowLogPath = slowLogPath == null || slowLogPath.isEmpty() ? null : slowLogPath;
 	}
 
 	/** 映射类的公共静态函数到api地址
@@ -99,40 +477,426 @@ public class SimpleHttpServer implements HttpHandler {
 
 	/** HTTP请求处理函数，由系统回调，应用程序不可调用 */
 	@Override
-	public void handle(HttpExchange he) throws IOException {
+	public void handle(final HttpExchange he) throws IOException {
+		pending.increment();
+		// 跟踪从接收请求开始，包括在线程池中排队的时间
+		final Trace trace = beginTrace(he);
+		if (workers == null) {
+			process(he, trace);
+			return;
+		}
+
+		// 交给线程池处理，有界线程池饱和时立即返回503，不排队等待
+		try {
+			workers.execute(new Runnable() {
+				@Override public void run() {
+					try {
+						process(he, trace);
+					} catch (Exception e) {
+						MyLogger.error(e, "process {} has error.", he.getRequestURI().getPath());
+						he.close();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			long start = System.nanoTime();
+			String path = he.getRequestURI().getPath();
+			MyLogger.warn("process {} rejected, server busy, {}.", path, workers);
+			// 拒绝的请求也计入对应映射地址的统计
+			Router.Route<MethodInfo> route = handles.find(path);
+			statsOf(route).begin();
+			try {
+				int retryAfter = workers instanceof ServerExecutor
+						? ((ServerExecutor) workers).getRetryAfter() : 1;
+				he.getResponseHeaders().add("Retry-After", String.valueOf(retryAfter));
+				processResult(he, route, path, 503, // http 服务不可用
+						ApiResult.error(EError.服务器繁忙.code(), EError.服务器繁忙.name()));
+			}
+			finally {
+				endRequest(he, route, path, start);
+				finishRequest(trace);
+			}
+		}
+	}
+
+	/** 请求结束，输出跟踪记录并减少未完成的请求数 */
+	private void finishRequest(Trace trace) {
+		Tracer.finish(trace);
+		pending.decrement();
+	}
+
+	/** 按采样规则开始请求的跟踪，沿用请求头中的跟踪id，并在应答头中返回跟踪id */
+	private static Trace beginTrace(HttpExchange he) {
+		if (!Tracer.isEnabled()) return null;
+		Headers headers = he.getRequestHeaders();
+		Trace trace = Tracer.begin(he.getRequestMethod(), he.getRequestURI().getPath(),
+				headers.getFirst(Tracer.TRACEPARENT_HEADER), headers.getFirst(Tracer.TRACE_ID_HEADER));
+		if (trace != null)
+			he.getResponseHeaders().set(Tracer.TRACE_ID_HEADER, trace.getTraceId());
+		return trace;
+	}
+
+	/** 处理http请求，解析参数调用映射的函数并返回结果 */
+	private void process(HttpExchange he, Trace trace) throws IOException {
+		long start = System.nanoTime();
 		logRequestInfo(he);
+		// 停止服务期间已有连接上的请求，应答后关闭连接
+		if (shuttingDown) he.getResponseHeaders().set("Connection", "close");
 
 		// 解析请求路径及请求参数，找到系统对应的处理函数进行调用处理，处理调用结果
-		String path = he.getRequestURI().getPath().toLowerCase();
-		ApiResult ret = null;
-		int httpCode = 200; // http成功代码
+		String path = he.getRequestURI().getPath();
+		boolean metrics = metricsPath != null && metricsPath.equals(path);
+		boolean health = healthPath != null && healthPath.equals(path);
+		if (metrics || health || slowLogPath != null && slowLogPath.equals(path)) {
+			try {
+				if (metrics) processMetrics(he, path);
+				else if (health) processHealth(he, path);
+				else processSlowLog(he, path);
+			}
+			finally {
+				finishRequest(trace);
+			}
+			return;
+		}
+		Tracer.attach(trace);
+
+		// 查找路径对应的处理函数并解析参数，然后进行调用，路由匹配忽略大小写
+		Router.Route<MethodInfo> route = handles.find(path);
+		statsOf(route).begin();
+		SlowLog.enter(route == null ? null : route.pattern);
+		// 异步结果在回调中记录耗时
+		boolean async = false;
 		try {
-			// 查找路径对应的处理函数并解析参数，然后进行调用
-			MethodInfo act = handles.get(path);
-			if (act != null)
-				ret = invokeMethodInfo(he, act);
-			else {
-				ret = ApiResult.error(EError.请求的地址不存在.code(), EError.请求的地址不存在.name());
-				httpCode = 404; // http找不到页面错误
+			Object ret = null;
+			try {
+				if (route != null) {
+					// 启用缓存或合并的GET请求，先按请求参数查找缓存，命中时不调用映射函数，
+					// 未命中时相同参数的并发请求只调用一次映射函数
+					MethodInfo act = route.target;
+					if ((act.cacheMillis > 0 || act.coalesce) && isGetRequest(he)) {
+						HashMap<String, Object> query = parseQuery(he, route, path);
+						String key = ResponseCache.key(route.pattern, query);
+						if (act.cacheMillis > 0) ret = responseCache.get(key);
+						if (ret == null) ret = invokeShared(he, route, path, key, query);
+					}
+					else ret = invokeMethodInfo(he, route, path);
+				}
+				else {
+					// http找不到页面错误
+					processResult(he, null, path, 404, ApiResult.error(
+							EError.请求的地址不存在.code(), EError.请求的地址不存在.name()));
+					return;
+				}
+			} catch (Exception e) {
+				processError(he, route, path, e);
+				return;
+			}
+
+			// 异步结果在设置结果的线程中写入，当前线程立即返回
+			if (ret instanceof ResponseCache.Entry)
+				processCached(he, route, path, (ResponseCache.Entry) ret);
+			else if (ret instanceof AsyncResult) {
+				processAsync(he, route, path, (AsyncResult) ret, start, trace);
+				async = true;
+			}
+			else processResult(he, route, path, 200, (ApiResult) ret);
+		}
+		finally {
+			if (!async) {
+				endRequest(he, route, path, start);
+				finishRequest(trace);
+			}
+			SlowLog.exit();
+			Tracer.detach();
+		}
+	}
+
+	/** 请求处理完成，记录耗时，超过阈值时写入慢请求记录 */
+	private void endRequest(HttpExchange he, Router.Route<MethodInfo> route,
+			String path, long start) {
+		long nanos = System.nanoTime() - start;
+		statsOf(route).end(nanos);
+		SlowLog.request(route == null ? null : route.pattern, he.getRequestMethod(),
+				path, he.getResponseCode(), nanos);
+	}
+
+	/** 合并相同参数的并发请求，领头请求调用映射函数并序列化结果，
+	 * 成功的结果放入缓存，其它请求等待并共享序列化后的结果，
+	 * 返回序列化后的结果，或者不能共享的异步结果
+	 */
+	private Object invokeShared(HttpExchange he, Router.Route<MethodInfo> route,
+			String path, String key, HashMap<String, Object> query) throws Exception {
+		MethodInfo act = route.target;
+		SingleFlight.Call call = singleFlight.join(key);
+		if (!call.isLeader()) {
+			ResponseCache.Entry shared = call.await(coalesceTimeout);
+			if (shared != null) {
+				route.stats.coalesced();
+				return shared;
 			}
+			// 领头请求返回的是异步结果或等待超时，只能自行调用
+			return invokeMethodInfo(he, route, path, query);
+		}
+
+		ResponseCache.Entry entry = null;
+		Exception error = null;
+		try {
+			Object ret = invokeMethodInfo(he, route, path, query);
+			if (!(ret instanceof ApiResult)) return ret;
+			ApiResult result = (ApiResult) ret;
+			entry = serializeResult(act, result);
+			// 失败的结果不缓存
+			if (act.cacheMillis > 0 && result.getCode() == 0) responseCache.put(key, entry);
+			return entry;
 		} catch (Exception e) {
+			error = e;
+			throw e;
+		}
+		finally {
+			singleFlight.leave(key, call, entry, error);
+		}
+	}
+
+	/** 序列化结果，生成可以被多个请求共享或放入缓存的条目 */
+	private ResponseCache.Entry serializeResult(MethodInfo act, ApiResult result) throws IOException {
+		PooledBytes body = PooledBytes.get();
+		try {
+			writeJson(body.asOutputStream(), result);
+			String etag = !act.etag ? null : result.getVersion() != null
+					? ETag.of(result.getVersion()) : ETag.of(body.buf, 0, body.count);
+			return new ResponseCache.Entry(Arrays.copyOf(body.buf, body.count), etag,
+					System.currentTimeMillis() + act.cacheMillis, result.getCode());
+		}
+		finally {
+			body.recycle();
+		}
+	}
+
+	/** 发送缓存的应答内容，不需要再次序列化 */
+	private void processCached(HttpExchange he, Router.Route<MethodInfo> route,
+			String path, ResponseCache.Entry entry) throws IOException {
+		Trace.Span span = Tracer.start("processResult", "cached");
+		try {
+			he.getResponseHeaders().add("Server", serverName);
+			if (entry.etag != null && notModified(he, route, entry.etag)) return;
+			route.stats.response(200, entry.code);
+			he.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+			writeResult(he, route, path, 200, null, entry.body, entry.body.length);
+		}
+		finally {
+			Tracer.end(span);
+		}
+	}
+
+	/** 等待异步结果完成后写入返回结果，超时返回504 */
+	private void processAsync(final HttpExchange he, final Router.Route<MethodInfo> route,
+			final String path, final AsyncResult ar, final long start, final Trace trace) {
+		final ScheduledFuture<?> timeout = asyncTimeout > 0 && !ar.isDone() ? getAsyncTimer().schedule(
+				new Runnable() {
+					@Override public void run() {
+						ar.fail(new TimeoutException("async result timeout"));
+					}
+				}, asyncTimeout, TimeUnit.MILLISECONDS) : null;
+
+		ar.onComplete(new AsyncResult.Callback() {
+			@Override public void apply(ApiResult result, Throwable error) {
+				if (timeout != null) timeout.cancel(false);
+				Tracer.attach(trace);
+				try {
+					if (error == null) processResult(he, route, path, 200, result);
+					else processError(he, route, path, error);
+				} catch (Exception e) {
+					MyLogger.error(e, "write async result of {} has error.", path);
+					he.close();
+				}
+				finally {
+					endRequest(he, route, path, start);
+					Tracer.detach();
+					finishRequest(trace);
+				}
+			}
+		});
+	}
+
+	/** 根据异常类型返回相应的错误结果 */
+	private void processError(HttpExchange he, Router.Route<MethodInfo> route,
+			String path, Throwable e) throws IOException {
+		if (e instanceof RequestInput.TooLargeException) {
+			MyLogger.warn("process {} rejected, {}.", path, e.getMessage());
+			processResult(he, route, path, 413, // http 请求内容过大
+					ApiResult.error(EError.请求内容过大.code(), EError.请求内容过大.name()));
+		}
+		else if (e instanceof TimeoutException) {
+			MyLogger.warn("process {} timeout after {}ms.", path, asyncTimeout);
+			processResult(he, route, path, 504, // http 网关超时
+					ApiResult.error(EError.请求处理超时.code(), EError.请求处理超时.name()));
+		}
+		else {
 			MyLogger.error(e, "process {} has error.", path);
-			ret = ApiResult.error(EError.系统内部错误.code(), EError.系统内部错误.name());
-			httpCode = 500; // http 内部错误
+			processResult(he, route, path, 500, // http 内部错误
+					ApiResult.error(EError.系统内部错误.code(), EError.系统内部错误.name()));
 		}
+	}
 
-		// 写入返回结果
-		processResult(he, path, httpCode, ret);
+	private synchronized ScheduledExecutorService getAsyncTimer() {
+		if (asyncTimer == null) {
+			asyncTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "http-async-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return asyncTimer;
 	}
 	
 	/** 获取已经生效的映射url */
 	final public Map<String, String> getAllMappingPath() {
 		Map<String, String> ret = new LinkedHashMap<String, String>();
-		for (Map.Entry<String, MethodInfo> item : handles.entrySet())
-			ret.put(item.getKey(), item.getValue().desc);
+		for (Router.Route<MethodInfo> route : handles.routes())
+			ret.put(route.pattern, route.target.desc);
+		return ret;
+	}
+
+	/** 获取每个映射url的访问统计 */
+	final public Map<String, RouteStats> getRouteStats() {
+		Map<String, RouteStats> ret = new LinkedHashMap<String, RouteStats>();
+		for (Router.Route<MethodInfo> route : handles.routes())
+			ret.put(route.pattern, route.stats);
 		return ret;
 	}
 	
+	/** 没有匹配到映射地址的请求统计 */
+	final public RouteStats getUnmatchedStats() {
+		return unmatchedStats;
+	}
+
+	private RouteStats statsOf(Router.Route<MethodInfo> route) {
+		return route == null ? unmatchedStats : route.stats;
+	}
+
+	/** 输出prometheus文本格式的指标 */
+	private void processMetrics(HttpExchange he, String path) throws IOException {
+		List<Router.Route<MethodInfo>> routes = handles.routes();
+		PrometheusWriter w = new PrometheusWriter();
+
+		w.type("http_requests_total", "counter", "Total requests by route.");
+		for (Router.Route<MethodInfo> r : routes)
+			w.sample("http_requests_total", r.stats.getHits(), "route", r.pattern);
+		w.sample("http_requests_total", unmatchedStats.getHits(), "route", "");
+
+		w.type("http_responses_total", "counter", "Total responses by route and http status.");
+		for (Router.Route<MethodInfo> r : routes)
+			writeStatuses(w, r.pattern, r.stats);
+		writeStatuses(w, "", unmatchedStats);
+
+		w.type("http_errors_total", "counter", "Total error results by route and error code.");
+		for (Router.Route<MethodInfo> r : routes)
+			writeErrors(w, r.pattern, r.stats);
+		writeErrors(w, "", unmatchedStats);
+
+		w.type("http_requests_in_flight", "gauge", "Requests currently being processed by route.");
+		long inFlight = unmatchedStats.getInFlight();
+		for (Router.Route<MethodInfo> r : routes) {
+			long n = r.stats.getInFlight();
+			inFlight += n;
+			w.sample("http_requests_in_flight", n, "route", r.pattern);
+		}
+		w.type("http_server_requests_in_flight", "gauge", "Requests currently being processed.");
+		w.sample("http_server_requests_in_flight", inFlight);
+
+		w.type("http_request_duration_seconds", "histogram", "Request latency by route.");
+		for (Router.Route<MethodInfo> r : routes)
+			w.histogram("http_request_duration_seconds", r.stats.getLatency(), "route", r.pattern);
+		w.histogram("http_request_duration_seconds", unmatchedStats.getLatency(), "route", "");
+
+		w.type("http_response_raw_bytes_total", "counter", "Uncompressed bytes of compressed responses.");
+		for (Router.Route<MethodInfo> r : routes)
+			w.sample("http_response_raw_bytes_total", r.stats.getRawBytes(), "route", r.pattern);
+		w.type("http_response_compressed_bytes_total", "counter", "Bytes of compressed responses.");
+		for (Router.Route<MethodInfo> r : routes)
+			w.sample("http_response_compressed_bytes_total",
+					r.stats.getCompressedBytes(), "route", r.pattern);
+
+		ResponseCache cache = responseCache;
+		w.type("http_response_cache_hits_total", "counter", "Response cache hits.");
+		w.sample("http_response_cache_hits_total", cache.getHits());
+		w.type("http_response_cache_misses_total", "counter", "Response cache misses.");
+		w.sample("http_response_cache_misses_total", cache.getMisses());
+		w.type("http_response_cache_entries", "gauge", "Response cache entries.");
+		w.sample("http_response_cache_entries", cache.getSize());
+
+		if (workers instanceof ServerExecutor) {
+			ServerExecutor se = (ServerExecutor) workers;
+			w.type("http_executor_queue_depth", "gauge", "Requests waiting in executor queue.");
+			w.sample("http_executor_queue_depth", se.getQueueDepth());
+			w.type("http_executor_active_workers", "gauge", "Executor threads running requests.");
+			w.sample("http_executor_active_workers", se.getActiveWorkers());
+			w.type("http_executor_rejected_total", "counter", "Requests rejected by executor.");
+			w.sample("http_executor_rejected_total", se.getRejectedCount());
+		}
+
+		// 每个来源先写入单独的缓冲区，成功后才合并，出错时不会输出不完整的指标
+		for (MetricsSource source : metricsSources) {
+			try {
+				PrometheusWriter sw = new PrometheusWriter();
+				source.writeMetrics(sw);
+				w.append(sw);
+			}
+			catch (Exception e) {
+				MyLogger.error(e, "write metrics of {} has error.", source);
+			}
+		}
+
+		byte[] bytes = w.toString().getBytes(UTF8_CHARSET);
+		he.getResponseHeaders().add("Server", serverName);
+		he.getResponseHeaders().add("Content-Type", PrometheusWriter.CONTENT_TYPE);
+		writeResult(he, null, path, 200, null, bytes, bytes.length);
+	}
+
+	/** 健康检查，平滑停止服务期间返回503 */
+	private void processHealth(HttpExchange he, String path) throws IOException {
+		ApiResult result = shuttingDown
+				? ApiResult.error(EError.服务正在停止.code(), EError.服务正在停止.name())
+				: ApiResult.success("UP");
+		he.getResponseHeaders().add("Server", serverName);
+		he.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+		writeResult(he, null, path, shuttingDown ? 503 : 200, result, null, 0);
+	}
+
+	/** 输出json格式的慢请求及慢SQL记录 */
+	private void processSlowLog(HttpExchange he, String path) throws IOException {
+		Object type = parseQuery(he.getRequestURI().getRawQuery()).get("type");
+		List<SlowLog.Entry> entries = SlowLog.getEntries();
+		if (type != null) {
+			List<SlowLog.Entry> list = new ArrayList<SlowLog.Entry>();
+			for (SlowLog.Entry e : entries)
+				if (e.getType().equals(type)) list.add(e);
+			entries = list;
+		}
+		he.getResponseHeaders().add("Server", serverName);
+		he.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+		writeResult(he, null, path, 200, ApiResult.success(entries), null, 0);
+	}
+
+	private static void writeStatuses(PrometheusWriter w, String route, RouteStats stats) {
+		for (int status : stats.getStatuses())
+			w.sample("http_responses_total", stats.getStatusCount(status),
+					"route", route, "status", String.valueOf(status));
+	}
+
+	private static void writeErrors(PrometheusWriter w, String route, RouteStats stats) {
+		for (EError e : EError.values()) {
+			long n = stats.getErrorCount(e.code());
+			if (n > 0) w.sample("http_errors_total", n,
+					"route", route, "code", String.valueOf(e.code()), "error", e.name());
+		}
+		// 映射函数返回的业务错误码
+		long n = stats.getErrorCount(0);
+		if (n > 0) w.sample("http_errors_total", n, "route", route, "code", "", "error", "app");
+	}
+
 	/** 映射类cls中的函数到url */
 	final private void mapClass(Class<?> cls, StringBuilder sb, boolean useAnnotation) {
 		if (useAnnotation) {
@@ -156,30 +920,68 @@ public class SimpleHttpServer implements HttpHandler {
 		Method[] ms = cls.getMethods();
 		for (int i = 0, n = ms.length; i < n; ++i) {
 			Method m = ms[i];
-			// 函数类型必须是：1、返回类型ApiResult
-			//                2、小于2个请求参数
+			// 函数类型必须是：1、返回类型ApiResult或AsyncResult
+			//                2、全部参数带绑定注解，或者小于2个请求参数
 			//                3、具备RequestMapping注解
-			if (m.getReturnType() != ApiResult.class) continue;
+			Class<?> rt = m.getReturnType();
+			if (rt != ApiResult.class && rt != AsyncResult.class) continue;
 			Class<?>[] ps = m.getParameterTypes();
-			// 如果是2个参数，第一个必须是Map<String, Object>类型
-			if (ps.length > 2 || ps.length == 2 && !Map.class.isAssignableFrom(ps[0]))
-				continue;
 
 			String desc = null;
+			boolean etag = false;
+			int cacheSeconds = 0;
+			boolean coalesce = false;
 			if (useAnnotation) {
 				RequestMapping rm = m.getAnnotation(RequestMapping.class);
 				if (rm == null) continue;
 				pathAppend(sb, rm.value());
 				desc = rm.desc();
+				etag = rm.etag();
+				cacheSeconds = rm.cacheSeconds();
+				coalesce = rm.coalesce();
+			}
+			else {
+				pathAppend(sb, m.getName());
+				RequestMapping rm = m.getAnnotation(RequestMapping.class);
+				etag = rm != null && rm.etag();
+				cacheSeconds = rm == null ? 0 : rm.cacheSeconds();
+				coalesce = rm != null && rm.coalesce();
 			}
-			else pathAppend(sb, m.getName());
 			
-			Class<?> arg1Type = ps.length == 0 ? null : ps[0];
-			Class<?> arg2Type = ps.length == 2 ? ps[1] : null;
 			String uri = sb.toString();
-			handles.put(uri, new MethodInfo(ctrl, m, arg1Type, arg2Type, desc));
-			logMappingInfo(uri, cls, m, arg1Type, arg2Type);
 			sb.setLength(prefix_len);
+			// 参数带绑定注解时，参数个数不限，绑定链在这里一次生成，
+			// 否则如果是2个参数，第一个必须是Map<String, Object>类型
+			ArgsBinder binder;
+			try {
+				binder = ArgsBinder.of(m, Router.variableNames(uri));
+			} catch (IllegalArgumentException e) {
+				MyLogger.warn("api url {} skip {}.{}, {}", uri, cls.getSimpleName(),
+						m.getName(), e.getMessage());
+				continue;
+			}
+			if (binder == null && (ps.length > 2
+					|| ps.length == 2 && !Map.class.isAssignableFrom(ps[0])))
+				continue;
+
+			Class<?> arg1Type = ps.length == 0 || binder != null ? null : ps[0];
+			Class<?> arg2Type = ps.length == 2 && binder == null ? ps[1] : null;
+			MethodInfo info = new MethodInfo(ctrl, m, arg1Type, arg2Type, desc);
+			info.etag = etag;
+			info.binder = binder;
+			// 应答缓存及请求合并以请求参数为键，只支持没有请求内容及请求头参数的函数
+			if (cacheSeconds > 0 || coalesce) {
+				if (binder != null ? binder.bodyIndex < 0 && !binder.hasHeader
+						: arg2Type == null && (arg1Type == null || Map.class.isAssignableFrom(arg1Type))) {
+					info.cacheMillis = cacheSeconds * 1000L;
+					info.coalesce = true;
+				}
+				else MyLogger.warn("api url {} has request body or header parameter, response cache and coalescing disabled.", uri);
+			}
+			if (handles.add(uri, info) != null)
+				logMappingInfo(uri, cls, m, info);
+			else MyLogger.warn("api url {} already mapped, skip {}.{}",
+					uri, cls.getSimpleName(), m.getName());
 		}
 	}
 	
@@ -191,89 +993,118 @@ public class SimpleHttpServer implements HttpHandler {
 		if (sb.charAt(sb.length() - 1) == '/') sb.setLength(sb.length() - 1);
 	}
 	
-	/** 根据MethodInfo的参数个数进行相应的函数处理 */
-	final private ApiResult invokeMethodInfo(HttpExchange he, MethodInfo act) throws Exception {
-		// 0个参数
-		if (act.arg1Type == null)
-			return (ApiResult) act.method.invoke(act.obj);
-		// 1个参数
-		Object arg1 = Map.class.isAssignableFrom(act.arg1Type)
-				? parseQuery(he.getRequestURI().getRawQuery())
-				: parseBody(he, act.arg1Type);
-		if (act.arg2Type == null)
-			return (ApiResult) act.method.invoke(act.obj, arg1);
-		// 2个参数
-		Object arg2 = parseBody(he, act.arg2Type);
-		return (ApiResult) act.method.invoke(act.obj, arg1, arg2);
-	}
-
-	/** 解析POST请求的body内容的json格式参数,返回类型为参数cls类型 */
-	final private Object parseBody(HttpExchange he, Class<?> cls) {
+	/** 根据MethodInfo的参数个数进行相应的函数处理，路径变量合并到请求参数中，
+	 * 返回ApiResult或AsyncResult
+	 */
+	final private Object invokeMethodInfo(HttpExchange he,
+			Router.Route<MethodInfo> route, String path) throws Exception {
+		MethodInfo act = route.target;
+		HashMap<String, Object> query = act.arg1Type != null
+				&& Map.class.isAssignableFrom(act.arg1Type) ? parseQuery(he, route, path) : null;
+		return invokeMethodInfo(he, route, path, query);
+	}
+
+	/** 使用已经解析的请求参数调用映射函数
+	 * @param query 请求参数，第一个参数不是Map类型时为null
+	 */
+	final private Object invokeMethodInfo(HttpExchange he, Router.Route<MethodInfo> route,
+			String path, HashMap<String, Object> query) throws Exception {
+		MethodInfo act = route.target;
+		Trace.Span span = Tracer.start("invoke", route.pattern);
 		try {
-			String body = readStringFromInputStream(he.getRequestBody());
-			MyLogger.debug("request body: {}", body);
-			Object ret = body == null || body.isEmpty()
-					? cls.newInstance() : JSON.parseObject(body, cls);
+			// 参数带绑定注解，按映射时生成的绑定链直接取值转换，不生成字典
+			ArgsBinder binder = act.binder;
+			if (binder != null) {
+				Object[] args = new Object[binder.argCount];
+				binder.bind(he.getRequestURI().getRawQuery(), route, path,
+						he.getRequestHeaders(), args);
+				if (binder.bodyIndex >= 0)
+					args[binder.bodyIndex] = parseBody(he, binder.bodyType);
+				return act.invoker.invoke(act.obj, args);
+			}
+			// 0个参数
+			if (act.arg1Type == null)
+				return act.invoker.invoke(act.obj);
+			// 1个参数
+			Object arg1 = query != null ? query : parseBody(he, act.arg1Type);
+			if (act.arg2Type == null)
+				return act.invoker.invoke(act.obj, arg1);
+			// 2个参数
+			Object arg2 = parseBody(he, act.arg2Type);
+			return act.invoker.invoke(act.obj, arg1, arg2);
+		}
+		finally {
+			Tracer.end(span);
+		}
+	}
+
+	/** 解析POST请求的body内容的json格式参数,返回类型为参数cls类型，
+	 * 请求内容读入可复用的字节缓冲区后直接解析，不生成中间字符串，超过最大长度时抛出异常
+	 */
+	final private Object parseBody(HttpExchange he, Class<?> cls)
+			throws RequestInput.TooLargeException {
+		// 根据Content-Length提前拒绝超长的请求，不读取请求内容
+		long contentLength = -1;
+		String len = he.getRequestHeaders().getFirst("Content-Length");
+		if (len != null) {
+			try {
+				contentLength = Long.parseLong(len.trim());
+			} catch (NumberFormatException e) { }
+		}
+		if (maxBodySize > 0 && contentLength > maxBodySize)
+			throw new RequestInput.TooLargeException(maxBodySize);
+
+		Trace.Span span = Tracer.start("parseBody", cls.getSimpleName());
+		RequestInput in = new RequestInput(he.getRequestBody(), maxBodySize,
+				MyLogger.isDebugEnabled() ? bodyLogLimit : 0);
+		PooledBytes bytes = PooledBytes.get();
+		try {
+			int count = contentLength == 0 ? 0 : in.readFully(bytes);
+			Object ret = count == 0 ? null
+					: JSON.parseObject(bytes.buf, 0, count, UTF8_CHARSET, cls);
+			if (ret == null) ret = cls.newInstance();
 			if (MyLogger.isDebugEnabled())
-				MyLogger.debug("parseBody result: {}", JSON.toJSONString(ret,
-					SerializerFeature.WriteDateUseDateFormat,
-					SerializerFeature.DisableCircularReferenceDetect));
+				MyLogger.debug("request body: {}", in.teeString());
 			return ret;
 
+		} catch (RequestInput.TooLargeException e) {
+			throw e;
 		} catch (Exception e) {
 			MyLogger.error(e, "parseBody error.");
 			return null;
+		} finally {
+			bytes.recycle();
+			Tracer.end(span);
 		}
 	}
 	
+	/** 解析url地址带的参数，并合并路由中的路径变量 */
+	final private HashMap<String, Object> parseQuery(HttpExchange he,
+			Router.Route<MethodInfo> route, String path) {
+		HashMap<String, Object> query = parseQuery(he.getRequestURI().getRawQuery());
+		if (route.hasVariables()) query.putAll(route.variables(path));
+		return query;
+	}
+
 	/** 解析url地址带的参数成hashmap类型返回值 */
-	@SuppressWarnings("unchecked")
-	final private HashMap<String, Object> parseQuery(String query) throws UnsupportedEncodingException {
-		HashMap<String, Object> ret = new HashMap<String, Object>();
-		if (query == null || query.isEmpty()) return ret;
-		int start, idx = -1;
-		do {
-			// 获取key和value
-			start = idx + 1;
-			idx = query.indexOf('&', start);
-			int pos = query.indexOf('=', start);
-			if (pos <= start || pos >= idx && idx > 0) {
-				MyLogger.debug("parseQuery warning, query string can't parse");
-				continue;
-			}
-			String key = URLDecoder.decode(query.substring(start, pos), UTF_8);
-			String value = URLDecoder.decode(query.substring(
-					pos + 1, idx > 0 ? idx : query.length()), UTF_8);
-			
-			// 写入键值到字典表中
-			Object old_value = ret.get(key);
-			if (old_value == null)
-				ret.put(key, value);
-			else {
-				ArrayList<String> values;
-				Class<?> old_cls = old_value.getClass();
-				if (old_cls == String.class) {
-					values = new ArrayList<String>();
-					values.add((String)old_value);
-				}
-				else if (old_cls == ArrayList.class) {
-					values = (ArrayList<String>)old_value;
-				}
-				else continue;
-				values.add(value);
-				ret.put(key, values);
-			}
-		} while (idx != -1);
-		
-		return ret;
+	final private HashMap<String, Object> parseQuery(String query) {
+		QueryParser parser = QueryParser.get();
+		try {
+			return parser.parse(query);
+		}
+		finally {
+			parser.recycle();
+		}
 	}
 	
 	/** 记录映射api的条目 */
-	private void logMappingInfo(String uri, Class<?> cls, Method method,
-			Class<?> arg1Type, Class<?> arg2Type) {
+	private void logMappingInfo(String uri, Class<?> cls, Method method, MethodInfo info) {
 		if (MyLogger.isInfoEnabled()) {
+			Class<?> arg1Type = info.arg1Type, arg2Type = info.arg2Type;
 			String paramsDefine;
-			if (arg2Type != null)
+			if (info.binder != null)
+				paramsDefine = info.binder.toString();
+			else if (arg2Type != null)
 				paramsDefine = Fmt.concat(arg1Type.getSimpleName(),
 						", ", arg2Type.getSimpleName());
 			else if (arg1Type != null)
@@ -299,104 +1130,136 @@ public class SimpleHttpServer implements HttpHandler {
 	
 	/** 处理返回结果，生成json格式发送给调用方
 	 * @param he http上下文
+	 * @param route 匹配的路由，用于记录访问统计，没有匹配时为null
 	 * @param path 请求路径
 	 * @param status 返回的http状态
 	 * @param result 返回的结果
 	 * @throws IOException
 	 */
-	private void processResult(HttpExchange he, String path, int status,
-			ApiResult result) throws IOException {
-		// 记录返回结果日志
-		if (MyLogger.isDebugEnabled())
-			MyLogger.debug("{} result: {}", path, JSON.toJSONString(result,
-					SerializerFeature.WriteDateUseDateFormat,
-					SerializerFeature.DisableCircularReferenceDetect));
-
-		// 返回结果使用json方式传输
-		byte[] jsonBytes = JSON.toJSONBytes(result,
-				SerializerFeature.WriteDateUseDateFormat,
-				SerializerFeature.DisableCircularReferenceDetect);
-		
+	private void processResult(HttpExchange he, Router.Route<MethodInfo> route,
+			String path, int status, ApiResult result) throws IOException {
 		// 向调用方客户端返回结果
 		Headers headers = he.getResponseHeaders();
+		RouteStats stats = statsOf(route);
+		Trace.Span span = Tracer.start("processResult", null);
 		headers.add("Server", serverName);
-		headers.add("Content-Type", "application/json; charset=UTF-8");
-		he.sendResponseHeaders(status, jsonBytes.length);
-		OutputStream out = he.getResponseBody();
-		out.write(jsonBytes);
-		out.close();
+
+		// 启用ETag的GET请求，优先使用结果的版本号，否则先完整序列化再计算ETag，
+		// 与请求头If-None-Match匹配时返回不带内容的304
+		PooledBytes body = null;
+		try {
+			if (status == 200 && route != null && route.target.etag && result != null
+					&& isGetRequest(he)) {
+				String etag;
+				if (result.getVersion() != null)
+					etag = ETag.of(result.getVersion());
+				else {
+					body = PooledBytes.get();
+					writeJson(body.asOutputStream(), result);
+					etag = ETag.of(body.buf, 0, body.count);
+				}
+				if (notModified(he, route, etag)) return;
+			}
+			stats.response(status, result != null ? result.getCode() : 0);
+			headers.add("Content-Type", "application/json; charset=UTF-8");
+			if (body != null) writeResult(he, route, path, status, null, body.buf, body.count);
+			else writeResult(he, route, path, status, result, null, 0);
+		}
+		finally {
+			if (body != null) body.recycle();
+			Tracer.end(span);
+		}
 	}
-	
-	/** 从流中读取文本内容直到末尾
-	 * @param inputStream http请求内容流
-	 * @return 读取的内容
+
+	/** 设置ETag应答头，与请求头If-None-Match匹配时发送不带内容的304
+	 * @return 是否已经发送304
+	 */
+	private boolean notModified(HttpExchange he, Router.Route<MethodInfo> route,
+			String etag) throws IOException {
+		he.getResponseHeaders().set("ETag", etag);
+		if (!ETag.matches(he.getRequestHeaders().getFirst("If-None-Match"), etag))
+			return false;
+		route.stats.notModified();
+		he.sendResponseHeaders(304, -1);
+		he.close();
+		return true;
+	}
+
+	/** 写入应答内容，直接序列化到输出流，超过阈值时自动改为chunked方式，
+	 * 调试日志直接复制实际发送的字节，只序列化一次，
+	 * 客户端支持压缩时，超过压缩阈值的内容边序列化边压缩
+	 * @param body 已经序列化的结果，为null时序列化result
+	 * @param bodyLen 已经序列化的结果长度
 	 */
-	private final String readStringFromInputStream(InputStream inputStream) {
-		String ret = null;
+	private void writeResult(HttpExchange he, Router.Route<MethodInfo> route, String path,
+			int status, ApiResult result, byte[] body, int bodyLen) throws IOException {
+		boolean debug = MyLogger.isDebugEnabled();
+		String encoding = compressThreshold > 0 ? Compressor.negotiate(
+				he.getRequestHeaders().getFirst("Accept-Encoding")) : null;
+		ResponseOutput out = new ResponseOutput(he, status, streamThreshold,
+				debug ? resultLogLimit : 0, encoding, compressThreshold);
+		boolean ok = false;
 		try {
-			Reader reader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
-			CharsItem ciItem = charsPool.get();
-			BufferItem bItem = bufferPool.get();
-			char[] buf = ciItem.buf;
-			int readCount;
-
-			while ((readCount = reader.read(buf)) != -1)
-				bItem.sb.append(buf, 0, readCount);
-			
-			ret = bItem.sb.toString();
-			ciItem.recycle();
-			bItem.recycle();
+			if (body != null) out.write(body, 0, bodyLen);
+			else writeJson(out, result);
+			out.close();
+			ok = true;
+			if (route != null && out.isCompressed())
+				route.stats.compressed(out.getRawBytes(), out.getCompressedBytes(),
+						out.getCompressNanos());
+			if (debug) MyLogger.debug("{} result: {}", path, out.teeString());
 		}
-		catch(IOException e) {
-			MyLogger.error(e, "读取网络输入流时错误.");
+		finally {
+			if (!ok) out.abort();
 		}
-		
-		return ret;
+	}
+
+	/** 以json格式序列化返回结果到输出流 */
+	private static void writeJson(OutputStream out, ApiResult result) throws IOException {
+		Writer writer = new OutputStreamWriter(out, UTF_8);
+		JSON.writeJSONString(writer, result,
+				SerializerFeature.WriteDateUseDateFormat,
+				SerializerFeature.DisableCircularReferenceDetect);
+		writer.flush();
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean isGetRequest(HttpExchange he) {
+		String method = he.getRequestMethod();
+		return "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method);
 	}
 	
 	private class MethodInfo {
 		public Object obj;
 		public Method method;
+		public MethodInvoker invoker;
 		public Class<?> arg1Type;
 		public Class<?> arg2Type;
 		public String desc;
+		public boolean etag;
+		// 应答缓存时间，单位毫秒，0表示不缓存
+		public long cacheMillis;
+		// 是否合并并发的相同请求
+		public boolean coalesce;
+		// 带绑定注解的参数绑定链，为null时使用arg1Type及arg2Type
+		public ArgsBinder binder;
 
 		public MethodInfo(Object obj, Method method,
 				Class<?> arg1Type, Class<?> arg2Type, String desc) {
 			this.obj = obj;
 			this.method = method;
+			this.invoker = MethodInvoker.create(method);
 			this.arg1Type = arg1Type;
 			this.arg2Type = arg2Type;
 			this.desc = desc;
 		}
 	}
-	
-	/** char数组对象池 */
-	private ObjectPool<CharsItem> charsPool = new ObjectPool<CharsItem>(
-			new Supplier<CharsItem>() {
-				@Override public CharsItem get() {
-					return new CharsItem();
-				} 
-	});
-
-	private class CharsItem extends ObjectPool.Item {
-		char[] buf = new char[512];
-	}
-	
-	/** StringBuilder对象池 */
-	private ObjectPool<BufferItem> bufferPool = new ObjectPool<BufferItem>(
-			new Supplier<BufferItem>() {
-				@Override public BufferItem get() {
-					return new BufferItem();
-				}
-	});
-
-	private class BufferItem extends ObjectPool.Item {
-		StringBuilder sb = new StringBuilder(1024);
-		@Override
-		protected void clear() {
-			super.clear();
-			sb.setLength(0);
-		}
-	}
 }
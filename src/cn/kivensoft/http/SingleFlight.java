@@ -0,0 +1,82 @@
+package cn.kivensoft.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** 合并并发的相同请求，同一个键同时只有一个请求(领头请求)调用映射函数，
+ * 其它请求等待领头请求完成后共享其序列化后的结果，避免缓存失效时大量请求同时访问数据库
+ * 使用方法:
+ *     SingleFlight.Call call = flights.join(key);
+ *     if (!call.isLeader()) return call.await(timeout);
+ *     try { ... } finally { flights.leave(key, call, entry, error); }
+ * @author kiven lee
+ * @version 1.1
+ */
+final class SingleFlight {
+	private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	/** 加入指定键的调用，没有进行中的调用时成为领头请求
+	 * @param key 请求键
+	 * @return 调用对象，isLeader为true时由调用者负责调用并在完成后调用leave，
+	 *     领头请求可以在其它线程中完成调用
+	 */
+	Call join(String key) {
+		Flight flight = new Flight();
+		Flight prev = flights.putIfAbsent(key, flight);
+		return prev == null ? new Call(flight, true) : new Call(prev, false);
+	}
+
+	/** 领头请求完成调用，唤醒所有等待的请求
+	 * @param key 请求键
+	 * @param call join返回的调用对象
+	 * @param entry 序列化后的结果，结果不能共享时为null
+	 * @param error 调用时产生的异常
+	 */
+	void leave(String key, Call call, ResponseCache.Entry entry, Exception error) {
+		Flight flight = call.flight;
+		flights.remove(key, flight);
+		flight.entry = entry;
+		flight.error = error;
+		flight.latch.countDown();
+	}
+
+	/** 正在进行的调用数 */
+	int size() {
+		return flights.size();
+	}
+
+	/** 同一个键的进行中的调用，由领头请求及所有等待的请求共享 */
+	private static final class Flight {
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private ResponseCache.Entry entry;
+		private Exception error;
+	}
+
+	/** join的结果，每次join返回一个新对象 */
+	static final class Call {
+		private final Flight flight;
+		private final boolean leader;
+
+		private Call(Flight flight, boolean leader) {
+			this.flight = flight;
+			this.leader = leader;
+		}
+
+		boolean isLeader() {
+			return leader;
+		}
+
+		/** 等待领头请求完成，返回共享的结果，领头请求失败时抛出相同的异常，
+		 * 结果不能共享或等待超时时返回null，由当前请求自行调用
+		 * @param timeoutMillis 最长等待时间，单位毫秒，小于等于0表示不限制
+		 */
+		ResponseCache.Entry await(long timeoutMillis) throws Exception {
+			// CountDownLatch保证leave中写入的结果对等待线程可见
+			if (timeoutMillis <= 0) flight.latch.await();
+			else if (!flight.latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) return null;
+			if (flight.error != null) throw flight.error;
+			return flight.entry;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package cn.kivensoft.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** 无锁的耗时直方图，采用HDR直方图的对数线性分桶方式，
+ * 每个2的幂区间再均分成8个子区间，相对误差不超过12.5%，记录时只做一次原子加，不分配内存，
+ * 单位为微秒，分桶覆盖到2^37微秒(约38小时)，最后一个桶从约35.8小时开始不设上限，
+ * 更大的值都计入该桶
+ * @author kiven lee
+ * @version 1.0
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int MAX_EXP = 36;
+	private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter sum = new StripedCounter();
+
+	/** 记录一次耗时
+	 * @param nanos 耗时，单位纳秒
+	 */
+	public void record(long nanos) {
+		long micros = nanos < 0 ? 0 : nanos / 1000;
+		counts.getAndIncrement(index(micros));
+		sum.add(micros);
+	}
+
+	/** 记录的总次数 */
+	public long getCount() {
+		long ret = 0;
+		for (int i = 0; i < BUCKETS; ++i)
+			ret += counts.get(i);
+		return ret;
+	}
+
+	/** 记录的耗时总和，单位微秒 */
+	public long getSumMicros() {
+		return sum.sum();
+	}
+
+	/** 获取百分位数，返回所在桶的上限，没有记录时返回0
+	 * @param percentile 百分位，取值0-100
+	 * @return 耗时，单位微秒
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = snapshot();
+		long total = 0;
+		for (long c : snapshot) total += c;
+		if (total == 0) return 0;
+		long target = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+		if (target == 0) target = 1;
+		long acc = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			acc += snapshot[i];
+			if (acc >= target) return upperBound(i) - 1;
+		}
+		return upperBound(BUCKETS - 1) - 1;
+	}
+
+	/** 计算小于等于各个上限的累计次数，用于输出prometheus格式的直方图，
+	 * 结果的精度为桶的宽度
+	 * @param boundsMicros 由小到大排列的上限，单位微秒
+	 * @return 各个上限对应的累计次数，最后附加一个全部次数
+	 */
+	public long[] cumulativeCounts(long[] boundsMicros) {
+		long[] snapshot = snapshot();
+		long[] ret = new long[boundsMicros.length + 1];
+		long acc = 0;
+		int b = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			// 桶的全部取值都不超过上限时才计入该上限
+			while (b < boundsMicros.length && upperBound(i) - 1 > boundsMicros[b])
+				ret[b++] = acc;
+			acc += snapshot[i];
+		}
+		while (b <= boundsMicros.length) ret[b++] = acc;
+		return ret;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; ++i)
+			counts.set(i, 0);
+		sum.reset();
+	}
+
+	private long[] snapshot() {
+		long[] ret = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++i)
+			ret[i] = counts.get(i);
+		return ret;
+	}
+
+	static int index(long v) {
+		if (v < SUB_COUNT) return (int) v;
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		int idx = (shift + 1) * SUB_COUNT + (int) ((v >>> shift) & (SUB_COUNT - 1));
+		return idx < BUCKETS ? idx : BUCKETS - 1;
+	}
+
+	// 桶的下限，包含
+	static long lowerBound(int idx) {
+		if (idx < SUB_COUNT) return idx;
+		int shift = idx / SUB_COUNT - 1;
+		return (long) (SUB_COUNT + idx % SUB_COUNT) << shift;
+	}
+
+	// 桶的上限，不包含
+	static long upperBound(int idx) {
+		return idx == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(idx + 1);
+	}
+}
@@ -0,0 +1,11 @@
+package cn.kivensoft.metrics;
+
+/** 附加指标的来源，注册到SimpleHttpServer后在输出http指标时一并输出，
+ * 例如数据库连接池的指标，实现类需要线程安全
+ * @author kiven lee
+ * @version 1.0
+ */
+public interface MetricsSource {
+	/** 把指标写入prometheus文本 */
+	void writeMetrics(PrometheusWriter writer);
+}
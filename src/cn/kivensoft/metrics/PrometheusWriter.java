@@ -0,0 +1,133 @@
+package cn.kivensoft.metrics;
+
+import java.math.BigDecimal;
+
+/** 生成prometheus文本格式(0.0.4版本)的指标数据
+ * 使用方法:
+ *     PrometheusWriter w = new PrometheusWriter();
+ *     w.type("http_requests_total", "counter", "Total requests.");
+ *     w.sample("http_requests_total", 10, "route", "/api/user");
+ *     String text = w.toString();
+ * @author kiven lee
+ * @version 1.0
+ */
+public final class PrometheusWriter {
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	// prometheus直方图缺省的上限，单位秒
+	private static final double[] DEFAULT_BOUNDS = { 0.0005, 0.001, 0.0025, 0.005,
+			0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+	private static final long[] DEFAULT_BOUNDS_MICROS = new long[DEFAULT_BOUNDS.length];
+	static {
+		for (int i = 0; i < DEFAULT_BOUNDS.length; ++i)
+			DEFAULT_BOUNDS_MICROS[i] = (long) (DEFAULT_BOUNDS[i] * 1000000);
+	}
+
+	private final StringBuilder sb = new StringBuilder(4096);
+
+	/** 写入指标的说明及类型，每个指标只需写一次
+	 * @param name 指标名称
+	 * @param type 类型，counter、gauge、histogram
+	 * @param help 说明
+	 */
+	public PrometheusWriter type(String name, String type, String help) {
+		sb.append("# HELP ").append(name).append(' ');
+		for (int i = 0, n = help.length(); i < n; ++i) {
+			char c = help.charAt(i);
+			if (c == '\\') sb.append("\\\\");
+			else if (c == '\n') sb.append("\\n");
+			else sb.append(c);
+		}
+		sb.append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		return this;
+	}
+
+	/** 写入一个样本
+	 * @param name 指标名称
+	 * @param value 值
+	 * @param labels 标签，按名称、值交替排列
+	 */
+	public PrometheusWriter sample(String name, long value, String... labels) {
+		appendName(name, labels, null);
+		sb.append(' ').append(value).append('\n');
+		return this;
+	}
+
+	public PrometheusWriter sample(String name, double value, String... labels) {
+		appendName(name, labels, null);
+		sb.append(' ');
+		appendDouble(value);
+		sb.append('\n');
+		return this;
+	}
+
+	/** 写入直方图的全部样本，包括_bucket、_sum、_count，使用缺省的上限
+	 * @param name 指标名称，单位为秒
+	 * @param histogram 耗时直方图
+	 * @param labels 标签，按名称、值交替排列
+	 */
+	public PrometheusWriter histogram(String name, LatencyHistogram histogram, String... labels) {
+		long[] counts = histogram.cumulativeCounts(DEFAULT_BOUNDS_MICROS);
+		String bucket = name + "_bucket";
+		for (int i = 0; i < DEFAULT_BOUNDS.length; ++i) {
+			appendName(bucket, labels, formatDouble(DEFAULT_BOUNDS[i]));
+			sb.append(' ').append(counts[i]).append('\n');
+		}
+		appendName(bucket, labels, "+Inf");
+		long total = counts[counts.length - 1];
+		sb.append(' ').append(total).append('\n');
+		sample(name + "_sum", histogram.getSumMicros() / 1000000.0, labels);
+		sample(name + "_count", total, labels);
+		return this;
+	}
+
+	/** 追加另一个writer的全部内容，用于把单独写入的指标合并到输出中 */
+	public PrometheusWriter append(PrometheusWriter other) {
+		sb.append(other.sb);
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return sb.toString();
+	}
+
+	private void appendName(String name, String[] labels, String le) {
+		sb.append(name);
+		if (labels.length == 0 && le == null) return;
+		sb.append('{');
+		for (int i = 0; i + 1 < labels.length; i += 2) {
+			if (i > 0) sb.append(',');
+			appendLabel(labels[i], labels[i + 1]);
+		}
+		if (le != null) {
+			if (labels.length > 0) sb.append(',');
+			appendLabel("le", le);
+		}
+		sb.append('}');
+	}
+
+	private void appendLabel(String name, String value) {
+		sb.append(name).append("=\"");
+		for (int i = 0, n = value.length(); i < n; ++i) {
+			char c = value.charAt(i);
+			if (c == '\\') sb.append("\\\\");
+			else if (c == '"') sb.append("\\\"");
+			else if (c == '\n') sb.append("\\n");
+			else sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	private void appendDouble(double value) {
+		sb.append(formatDouble(value));
+	}
+
+	private static String formatDouble(double value) {
+		if (value == (long) value) return Long.toString((long) value);
+		String s = Double.toString(value);
+		// 上限作为标签值使用，避免科学计数法
+		return s.indexOf('E') < 0 ? s : new BigDecimal(s).stripTrailingZeros().toPlainString();
+	}
+}
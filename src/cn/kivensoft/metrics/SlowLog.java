@@ -0,0 +1,221 @@
+package cn.kivensoft.metrics;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.alibaba.fastjson.JSON;
+
+import cn.kivensoft.trace.Trace;
+import cn.kivensoft.trace.Tracer;
+
+/** 慢请求及慢SQL记录，始终开启，超过阈值的请求或SQL写入固定大小的环形缓冲区，
+ * 写满后覆盖最旧的记录，未超过阈值时只做一次比较，不分配内存
+ * 使用方法:
+ *     SlowLog.setRequestThreshold(500);
+ *     SlowLog.setSqlThreshold(100);
+ *     List<SlowLog.Entry> entries = SlowLog.getEntries();
+ * @author kiven lee
+ * @version 1.0
+ */
+public final class SlowLog {
+	public static final String REQUEST = "request";
+	public static final String SQL = "sql";
+
+	private static final int DEFAULT_CAPACITY = 256;
+	private static final long DEFAULT_REQUEST_THRESHOLD = 1000;
+	private static final long DEFAULT_SQL_THRESHOLD = 200;
+	// 参数摘要的最大长度
+	private static final int MAX_PARAMS_LENGTH = 256;
+
+	// 当前线程正在处理的请求的映射地址，用于关联慢SQL
+	private static final ThreadLocal<String> currentRoute = new ThreadLocal<String>();
+	private static volatile AtomicReferenceArray<Entry> buffer =
+			new AtomicReferenceArray<Entry>(DEFAULT_CAPACITY);
+	private static final AtomicLong position = new AtomicLong();
+	private static volatile long requestThresholdNanos =
+			TimeUnit.MILLISECONDS.toNanos(DEFAULT_REQUEST_THRESHOLD);
+	private static volatile long sqlThresholdNanos =
+			TimeUnit.MILLISECONDS.toNanos(DEFAULT_SQL_THRESHOLD);
+
+	private SlowLog() {}
+
+	/** 慢请求的阈值，单位毫秒 */
+	public static long getRequestThreshold() {
+		return TimeUnit.NANOSECONDS.toMillis(requestThresholdNanos);
+	}
+
+	/** 设置慢请求的阈值，处理时间超过该值的请求被记录
+	 * @param millis 阈值，单位毫秒，小于等于0时不记录
+	 */
+	public static void setRequestThreshold(long millis) {
+		requestThresholdNanos = millis <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/** 慢SQL的阈值，单位毫秒 */
+	public static long getSqlThreshold() {
+		return TimeUnit.NANOSECONDS.toMillis(sqlThresholdNanos);
+	}
+
+	/** 设置慢SQL的阈值，执行时间超过该值的SQL被记录
+	 * @param millis 阈值，单位毫秒，小于等于0时不记录
+	 */
+	public static void setSqlThreshold(long millis) {
+		sqlThresholdNanos = millis <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	public static int getCapacity() {
+		return buffer.length();
+	}
+
+	/** 设置缓冲区能保存的记录数，原有记录被丢弃 */
+	public static void setCapacity(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive.");
+		buffer = new AtomicReferenceArray<Entry>(capacity);
+	}
+
+	/** 设置当前线程正在处理的请求的映射地址，route为null时清除 */
+	public static void enter(String route) {
+		if (route == null) currentRoute.remove();
+		else currentRoute.set(route);
+	}
+
+	/** 清除当前线程正在处理的请求的映射地址 */
+	public static void exit() {
+		currentRoute.remove();
+	}
+
+	/** 记录请求的处理时间，超过阈值时写入缓冲区
+	 * @param route 映射地址，没有匹配时为null
+	 * @param method 请求方法
+	 * @param path 请求路径
+	 * @param status http状态
+	 * @param nanos 处理时间，单位纳秒
+	 */
+	public static void request(String route, String method, String path, int status, long nanos) {
+		if (nanos < requestThresholdNanos) return;
+		add(new Entry(REQUEST, route, method + " " + path, null, status, nanos));
+	}
+
+	/** 记录SQL的执行时间，超过阈值时写入缓冲区
+	 * @param sql SQL语句
+	 * @param params 参数，可以是数组、迭代器、bean或map
+	 * @param nanos 执行时间，单位纳秒
+	 */
+	public static void sql(String sql, Object params, long nanos) {
+		if (nanos < sqlThresholdNanos) return;
+		add(new Entry(SQL, currentRoute.get(), sql, summary(params), 0, nanos));
+	}
+
+	/** 获取缓冲区中的记录，最新的在前 */
+	public static List<Entry> getEntries() {
+		AtomicReferenceArray<Entry> buf = buffer;
+		long end = position.get();
+		int cap = buf.length();
+		List<Entry> ret = new ArrayList<Entry>((int) Math.min(end, cap));
+		for (long i = end - 1; i >= 0 && i >= end - cap; --i) {
+			Entry e = buf.get((int) (i % cap));
+			if (e != null) ret.add(e);
+		}
+		return ret;
+	}
+
+	public static void clear() {
+		AtomicReferenceArray<Entry> buf = buffer;
+		for (int i = 0, n = buf.length(); i < n; ++i)
+			buf.set(i, null);
+	}
+
+	private static void add(Entry entry) {
+		AtomicReferenceArray<Entry> buf = buffer;
+		buf.set((int) (position.getAndIncrement() % buf.length()), entry);
+	}
+
+	// 生成参数摘要，超过最大长度时截断
+	private static String summary(Object params) {
+		if (params == null) return null;
+		String s;
+		if (params instanceof Iterator) s = "[batch]";
+		else {
+			try {
+				s = JSON.toJSONString(params);
+			} catch (Exception e) {
+				s = String.valueOf(params);
+			}
+		}
+		return s.length() <= MAX_PARAMS_LENGTH ? s : s.substring(0, MAX_PARAMS_LENGTH) + "...";
+	}
+
+	/** 慢请求或慢SQL的记录 */
+	public static final class Entry {
+		private final String type;
+		private final Date time;
+		private final String route;
+		private final String detail;
+		private final String params;
+		private final int status;
+		private final long durationMicros;
+		private final String traceId;
+		private final String thread;
+
+		Entry(String type, String route, String detail, String params, int status, long nanos) {
+			this.type = type;
+			this.time = new Date();
+			this.route = route;
+			this.detail = detail;
+			this.params = params;
+			this.status = status;
+			this.durationMicros = nanos / 1000;
+			Trace trace = Tracer.current();
+			this.traceId = trace == null ? null : trace.getTraceId();
+			this.thread = Thread.currentThread().getName();
+		}
+
+		/** 类型，request或sql */
+		public String getType() {
+			return type;
+		}
+
+		public Date getTime() {
+			return time;
+		}
+
+		/** 映射地址，没有匹配或不在请求中执行的SQL为null */
+		public String getRoute() {
+			return route;
+		}
+
+		/** 请求方法及路径，或者SQL语句 */
+		public String getDetail() {
+			return detail;
+		}
+
+		/** SQL参数的摘要 */
+		public String getParams() {
+			return params;
+		}
+
+		/** 请求的http状态，SQL时为0 */
+		public int getStatus() {
+			return status;
+		}
+
+		public long getDurationMicros() {
+			return durationMicros;
+		}
+
+		/** 被采样跟踪时的跟踪id */
+		public String getTraceId() {
+			return traceId;
+		}
+
+		public String getThread() {
+			return thread;
+		}
+	}
+}
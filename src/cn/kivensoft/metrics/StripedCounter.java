@@ -0,0 +1,59 @@
+package cn.kivensoft.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** 分段计数器，不同线程按线程id散列到不同的缓存行上计数，读取时汇总，
+ * 高并发下避免多个线程争用同一个AtomicLong，计数时不分配内存
+ * @author kiven lee
+ * @version 1.0
+ */
+public final class StripedCounter {
+	// 每个分段占用8个long(64字节)，避免伪共享
+	private static final int PAD = 8;
+	private static final int STRIPES = stripes();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+	public void increment() {
+		cells.getAndIncrement(index());
+	}
+
+	public void decrement() {
+		cells.getAndDecrement(index());
+	}
+
+	public void add(long x) {
+		cells.getAndAdd(index(), x);
+	}
+
+	/** 汇总所有分段的计数，并发修改时返回的是近似值 */
+	public long sum() {
+		long ret = 0;
+		for (int i = 0, n = cells.length(); i < n; i += PAD)
+			ret += cells.get(i);
+		return ret;
+	}
+
+	public void reset() {
+		for (int i = 0, n = cells.length(); i < n; i += PAD)
+			cells.set(i, 0);
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+
+	private static int index() {
+		long id = Thread.currentThread().getId();
+		int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+		return ((h ^ (h >>> 16)) & (STRIPES - 1)) * PAD;
+	}
+
+	// 分段数为cpu核数2倍向上取2的幂，最多64段
+	private static int stripes() {
+		int n = Runtime.getRuntime().availableProcessors() * 2, ret = 1;
+		while (ret < n && ret < 64) ret <<= 1;
+		return ret;
+	}
+}
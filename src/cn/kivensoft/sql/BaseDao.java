@@ -17,6 +17,9 @@ import com.esotericsoftware.reflectasm.MethodAccess;
 
 import cn.kivensoft.function.Predicate;
 import cn.kivensoft.function.Supplier;
+import cn.kivensoft.metrics.SlowLog;
+import cn.kivensoft.trace.Trace;
+import cn.kivensoft.trace.Tracer;
 import cn.kivensoft.util.Fmt;
 import cn.kivensoft.util.MyLogger;
 import cn.kivensoft.util.WeakCache;
@@ -123,6 +126,8 @@ public abstract class BaseDao {
 	final public <T> int[] executeBatch(String sql, Iterator<T> iterator) throws SQLException {
 		checkConnection();
 		NamedStatement stmt = null;
+		long start = System.nanoTime();
+		Trace.Span span = Tracer.start("sql.batch", sql);
 		try {
 			stmt = new NamedStatement(conn, sql);
 			while (iterator.hasNext()) {
@@ -143,6 +148,7 @@ public abstract class BaseDao {
 		}
 		finally {
 			if (stmt != null) stmt.close();
+			endSQL(span, sql, iterator, start);
 		}
 	}
 	
@@ -154,6 +160,8 @@ public abstract class BaseDao {
 	final public int execute(String sql) throws SQLException {
 		checkConnection();
 		Statement stmt = null;
+		long start = System.nanoTime();
+		Trace.Span span = Tracer.start("sql.execute", sql);
 		try {
 			stmt = conn.createStatement();
 			logSQL(sql, null);
@@ -167,6 +175,7 @@ public abstract class BaseDao {
 		}
 		finally {
 			if (stmt != null) stmt.close();
+			endSQL(span, sql, null, start);
 		}
 	}
 
@@ -179,6 +188,8 @@ public abstract class BaseDao {
 	final public int execute(String sql, Object arg) throws SQLException {
 		checkConnection();
 		NamedStatement stmt = null;
+		long start = System.nanoTime();
+		Trace.Span span = Tracer.start("sql.execute", sql);
 		try {
 			stmt = new NamedStatement(conn, sql);
 			if (arg != null) stmt.setParams(arg);
@@ -193,6 +204,7 @@ public abstract class BaseDao {
 		}
 		finally {
 			if (stmt != null) stmt.close();
+			endSQL(span, sql, arg, start);
 		}
 	}
 
@@ -235,6 +247,8 @@ public abstract class BaseDao {
 	final public int execute(String sql, Object... args) throws SQLException {
 		checkConnection();
 		PreparedStatement stmt = null;
+		long start = System.nanoTime();
+		Trace.Span span = Tracer.start("sql.execute", sql);
 		try {
 			stmt = conn.prepareStatement(sql);
 			for(int i = 0, n = args.length; i < n; ++i)
@@ -250,6 +264,7 @@ public abstract class BaseDao {
 		}
 		finally {
 			if (stmt != null) stmt.close();
+			endSQL(span, sql, args, start);
 		}
 	}
 	
@@ -263,6 +278,8 @@ public abstract class BaseDao {
 		checkConnection();
 		Statement stmt = null;
 		ResultSet rs = null;
+		long start = System.nanoTime();
+		Trace.Span span = Tracer.start("sql.query", sql);
 		try {
 			stmt = conn.createStatement();
 			logSQL(sql, null);
@@ -276,6 +293,7 @@ public abstract class BaseDao {
 		}
 		finally {
 			closeResource(stmt, rs);
+			endSQL(span, sql, null, start);
         }
 	}
 
@@ -290,6 +308,8 @@ public abstract class BaseDao {
 		checkConnection();
 		NamedStatement stmt = null;
 		ResultSet rs = null;
+		long start = System.nanoTime();
+		Trace.Span span = Tracer.start("sql.query", sql);
 		try {
 			stmt = new NamedStatement(conn, sql);
 			stmt.setParams(arg);
@@ -304,6 +324,7 @@ public abstract class BaseDao {
 		}
 		finally {
 			closeResource(stmt, rs);
+			endSQL(span, sql, arg, start);
         }
 	}
 	
@@ -318,6 +339,8 @@ public abstract class BaseDao {
 		checkConnection();
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
+		long start = System.nanoTime();
+		Trace.Span span = Tracer.start("sql.query", sql);
 		try {
 			stmt = conn.prepareStatement(sql);
 			for(int i = 0, n = args.length; i < n; ++i)
@@ -333,6 +356,7 @@ public abstract class BaseDao {
 		}
 		finally {
 			closeResource(stmt, rs);
+			endSQL(span, sql, args, start);
         }
 	}
 	
@@ -737,6 +761,12 @@ public abstract class BaseDao {
 		return new String(chars, 0, start);
 	}
 
+	/** SQL执行完成，结束跟踪阶段，执行时间超过阈值时写入慢SQL记录 */
+	final private void endSQL(Trace.Span span, String sql, Object arg, long start) {
+		Tracer.end(span);
+		SlowLog.sql(sql, arg, System.nanoTime() - start);
+	}
+
 	final protected void logSQL(String sql, Object arg) {
 		MyLogger.debug("执行SQL: {}", sql);
 		if (arg != null) MyLogger.debugJson("SQL参数: {}", arg);
@@ -0,0 +1,128 @@
+package cn.kivensoft.sql;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.PooledConnection;
+
+/** 连接池使用的无锁连接容器，借出及归还通过比较并交换连接的状态完成，不需要加锁，
+ * 每个线程优先借出自己上次使用的连接，减少线程间对同一连接的争用
+ * @author kiven lee
+ * @version 1.0
+ */
+final class ConnectionBag {
+	static final int NOT_IN_USE = 0;
+	static final int IN_USE = 1;
+	static final int REMOVED = -1;
+
+	// 所有连接，读多写少，只有创建及关闭连接时才修改
+	private final CopyOnWriteArrayList<Entry> sharedList = new CopyOnWriteArrayList<Entry>();
+	// 线程上次使用的连接，使用弱引用避免线程一直持有已关闭的连接
+	private final ThreadLocal<WeakReference<Entry>> lastUsed =
+			new ThreadLocal<WeakReference<Entry>>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/** 借出一个空闲连接，优先借出当前线程上次使用的连接
+	 * @return 连接，没有空闲连接时返回null
+	 */
+	Entry borrow() {
+		WeakReference<Entry> ref = lastUsed.get();
+		if (ref != null) {
+			Entry entry = ref.get();
+			if (entry != null && entry.compareAndSet(NOT_IN_USE, IN_USE)) {
+				idleCount.decrementAndGet();
+				return entry;
+			}
+			// 连接已被移除时不再保留
+			if (entry == null || entry.getState() == REMOVED) lastUsed.remove();
+		}
+		for (Entry e : sharedList) {
+			if (e.compareAndSet(NOT_IN_USE, IN_USE)) {
+				idleCount.decrementAndGet();
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/** 归还借出的连接，记录归还时间并作为当前线程下次优先借出的连接 */
+	void requite(Entry entry) {
+		long now = System.nanoTime();
+		entry.lastAccess = now;
+		entry.lastValidated = now;
+		if (entry.compareAndSet(IN_USE, NOT_IN_USE)) {
+			idleCount.incrementAndGet();
+			WeakReference<Entry> ref = lastUsed.get();
+			if (ref == null || ref.get() != entry) lastUsed.set(new WeakReference<Entry>(entry));
+		}
+	}
+
+	/** 加入新创建的连接，状态为IN_USE时直接作为借出的连接 */
+	void add(Entry entry) {
+		entry.lastAccess = entry.lastValidated = entry.createTime;
+		if (entry.getState() == NOT_IN_USE) idleCount.incrementAndGet();
+		sharedList.add(entry);
+	}
+
+	/** 把空闲连接标记为待移除，避免被其他线程借出
+	 * @return 成功标记返回true，连接已被借出或已移除返回false
+	 */
+	boolean reserve(Entry entry) {
+		if (!entry.compareAndSet(NOT_IN_USE, REMOVED)) return false;
+		idleCount.decrementAndGet();
+		return true;
+	}
+
+	/** 取消待移除标记，连接恢复为空闲状态 */
+	void unreserve(Entry entry) {
+		if (entry.compareAndSet(REMOVED, NOT_IN_USE))
+			idleCount.incrementAndGet();
+	}
+
+	/** 移除借出中或已标记为待移除的连接
+	 * @return 成功移除返回true，连接是空闲状态或已移除返回false
+	 */
+	boolean remove(Entry entry) {
+		if (!entry.compareAndSet(IN_USE, REMOVED) && entry.getState() != REMOVED)
+			return false;
+		return sharedList.remove(entry);
+	}
+
+	/** 所有连接的快照 */
+	List<Entry> values() {
+		return sharedList;
+	}
+
+	int size() {
+		return sharedList.size();
+	}
+
+	int getIdleCount() {
+		return idleCount.get();
+	}
+
+	/** 容器中的连接，状态在NOT_IN_USE、IN_USE、REMOVED之间变化 */
+	static class Entry extends AtomicInteger {
+		private static final long serialVersionUID = 1L;
+
+		final PooledConnection pconn;
+		// 创建时间，System.nanoTime的值
+		final long createTime;
+		// 最后一次归还的时间，System.nanoTime的值
+		volatile long lastAccess;
+		// 最后一次确认可用的时间，归还或后台检查通过时更新
+		volatile long lastValidated;
+
+		Entry(PooledConnection pconn, int state) {
+			super(state);
+			this.pconn = pconn;
+			this.createTime = System.nanoTime();
+		}
+
+		int getState() {
+			return get();
+		}
+	}
+}
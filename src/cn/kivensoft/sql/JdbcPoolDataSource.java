@@ -0,0 +1,84 @@
+package cn.kivensoft.sql;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
+import javax.sql.PooledConnection;
+
+/** 通用的ConnectionPoolDataSource，通过DriverManager或者DataSource创建物理连接，
+ * 用于不提供ConnectionPoolDataSource实现的jdbc驱动
+ * @author kiven lee
+ * @version 1.0
+ */
+final class JdbcPoolDataSource implements ConnectionPoolDataSource {
+	private final DataSource dataSource;
+	private final String url;
+	private final String username;
+	private final String password;
+	private int loginTimeout;
+	private PrintWriter logWriter;
+
+	/** 通过DriverManager创建连接，驱动类需要预先加载 */
+	JdbcPoolDataSource(String url, String username, String password) {
+		this.dataSource = null;
+		this.url = url;
+		this.username = username;
+		this.password = password;
+	}
+
+	/** 通过DataSource创建连接 */
+	JdbcPoolDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+		this.url = null;
+		this.username = null;
+		this.password = null;
+	}
+
+	@Override
+	public PooledConnection getPooledConnection() throws SQLException {
+		Connection conn;
+		if (dataSource != null) conn = dataSource.getConnection();
+		else if (username == null) conn = DriverManager.getConnection(url);
+		else conn = DriverManager.getConnection(url, username, password);
+		return new JdbcPooledConnection(conn);
+	}
+
+	@Override
+	public PooledConnection getPooledConnection(String user, String password)
+			throws SQLException {
+		Connection conn = dataSource != null ? dataSource.getConnection(user, password)
+				: DriverManager.getConnection(url, user, password);
+		return new JdbcPooledConnection(conn);
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return logWriter;
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		this.logWriter = out;
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		this.loginTimeout = seconds;
+		if (dataSource != null) dataSource.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return loginTimeout;
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
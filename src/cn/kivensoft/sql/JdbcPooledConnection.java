@@ -0,0 +1,261 @@
+package cn.kivensoft.sql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+
+/** 包装普通jdbc连接的PooledConnection，getConnection返回拦截close的代理连接，
+ * 代理连接关闭时回滚未提交的事务、关闭未关闭的Statement并通知连接池归还，
+ * 出现连接类错误(SQLState以08开头)时通知连接池关闭该连接，
+ * 代理连接创建的Statement、ResultSet、DatabaseMetaData也是代理对象，不会泄露物理连接
+ * @author kiven lee
+ * @version 1.1
+ */
+final class JdbcPooledConnection implements PooledConnection {
+	private static final Class<?>[] INTERFACES = new Class<?>[] { Connection.class };
+	// 需要包装成代理的返回类型
+	private static final List<Class<?>> WRAPPED_TYPES = Arrays.<Class<?>>asList(
+			Statement.class, PreparedStatement.class, CallableStatement.class,
+			ResultSet.class, DatabaseMetaData.class);
+	// 跟踪的Statement超过该数量时清除已关闭的
+	private static final int PRUNE_THRESHOLD = 64;
+
+	private final Connection physical;
+	private final List<ConnectionEventListener> listeners =
+			new CopyOnWriteArrayList<ConnectionEventListener>();
+	// 当前借出的代理连接
+	private volatile Handler handler;
+
+	JdbcPooledConnection(Connection physical) {
+		this.physical = physical;
+	}
+
+	/** 返回新的代理连接，原来的代理连接被关闭但不通知连接池 */
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (physical.isClosed())
+			throw new SQLException("Physical connection is closed.", "08003");
+		Handler h = handler;
+		if (h != null) h.close(false);
+		h = new Handler();
+		h.proxy = (Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader(), INTERFACES, h);
+		handler = h;
+		return h.proxy;
+	}
+
+	@Override
+	public void close() throws SQLException {
+		Handler h = handler;
+		if (h != null) h.closed = true;
+		physical.close();
+	}
+
+	@Override
+	public void addConnectionEventListener(ConnectionEventListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeConnectionEventListener(ConnectionEventListener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void addStatementEventListener(StatementEventListener listener) {
+	}
+
+	@Override
+	public void removeStatementEventListener(StatementEventListener listener) {
+	}
+
+	private void fireClosed() {
+		ConnectionEvent event = new ConnectionEvent(this);
+		for (ConnectionEventListener l : listeners)
+			l.connectionClosed(event);
+	}
+
+	private void fireError(SQLException e) {
+		ConnectionEvent event = new ConnectionEvent(this, e);
+		for (ConnectionEventListener l : listeners)
+			l.connectionErrorOccurred(event);
+	}
+
+	// 是否连接类的错误，出现该类错误的连接不能再使用
+	private static boolean isFatal(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && state.startsWith("08");
+	}
+
+	// 代理对象的unwrap，只能转换为代理对象实现的接口，避免泄露物理对象
+	private static Object unwrap(Object proxy, Object[] args) throws SQLException {
+		Class<?> iface = (Class<?>) args[0];
+		if (iface.isInstance(proxy)) return proxy;
+		throw new SQLException("Pooled object can not unwrap to " + iface.getName() + ".");
+	}
+
+	/** 代理连接的调用处理，关闭后除close、isClosed外的调用抛出异常 */
+	private final class Handler implements InvocationHandler {
+		// 未关闭的物理Statement，代理Statement关闭时移除
+		private final Set<Statement> statements =
+				Collections.newSetFromMap(new IdentityHashMap<Statement, Boolean>());
+		private Connection proxy;
+		private volatile boolean closed;
+		private boolean broken;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				close(true);
+				return null;
+			}
+			if (name.equals("isClosed")) return closed || physical.isClosed();
+			if (name.equals("equals")) return proxy == args[0];
+			if (name.equals("hashCode")) return System.identityHashCode(proxy);
+			if (name.equals("toString"))
+				return "PooledConnection@" + Integer.toHexString(System.identityHashCode(proxy))
+						+ " wrapping " + physical;
+			if (name.equals("isWrapperFor")) return ((Class<?>) args[0]).isInstance(proxy);
+			if (closed) throw new SQLException("Connection is closed.", "08003");
+			if (name.equals("unwrap")) return unwrap(proxy, args);
+
+			return wrap(method.getReturnType(), invokeTarget(physical, method, args), proxy);
+		}
+
+		// 调用物理对象，出现连接类错误时通知连接池
+		Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			}
+			catch (InvocationTargetException e) {
+				Throwable t = e.getTargetException();
+				if (t instanceof SQLException && isFatal((SQLException) t)) broken((SQLException) t);
+				throw t;
+			}
+		}
+
+		// 把Statement、ResultSet等返回值包装成代理对象，owner为创建该对象的代理
+		Object wrap(Class<?> type, Object target, Object owner) {
+			if (target == null || !WRAPPED_TYPES.contains(type)) return target;
+			if (target instanceof Statement) track((Statement) target);
+			return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+					new ChildHandler(target, owner));
+		}
+
+		private void track(Statement stmt) {
+			synchronized (statements) {
+				if (statements.size() >= PRUNE_THRESHOLD) {
+					// 清除没有通过代理关闭的Statement，例如被驱动自动关闭的
+					for (Iterator<Statement> it = statements.iterator(); it.hasNext(); ) {
+						try {
+							if (it.next().isClosed()) it.remove();
+						}
+						catch (SQLException e) {
+							it.remove();
+						}
+					}
+				}
+				statements.add(stmt);
+			}
+		}
+
+		private void untrack(Statement stmt) {
+			synchronized (statements) {
+				statements.remove(stmt);
+			}
+		}
+
+		// 关闭代理连接，notify为true时通知连接池归还
+		void close(boolean notify) {
+			synchronized (this) {
+				if (closed) return;
+				closed = true;
+			}
+			List<Statement> list;
+			synchronized (statements) {
+				list = new ArrayList<Statement>(statements);
+				statements.clear();
+			}
+			for (Statement stmt : list) {
+				try {
+					stmt.close();
+				}
+				catch (SQLException e) {
+					if (isFatal(e)) broken = true;
+				}
+			}
+			// 回滚失败时无法保证事务已结束，不能再给其它请求使用
+			try {
+				if (!physical.getAutoCommit()) physical.rollback();
+			}
+			catch (SQLException e) {
+				broken = true;
+			}
+			if (!notify) return;
+			if (broken) fireError(new SQLException("Connection is broken.", "08006"));
+			else fireClosed();
+		}
+
+		// 出现连接类错误，通知连接池该连接不能再使用，代理连接随后的close不再通知
+		private void broken(SQLException e) {
+			synchronized (this) {
+				if (closed || broken) return;
+				broken = true;
+				closed = true;
+			}
+			fireError(e);
+		}
+
+		/** Statement、ResultSet及DatabaseMetaData代理的调用处理，
+		 * getConnection、getStatement返回代理对象，关闭Statement时停止跟踪
+		 */
+		private final class ChildHandler implements InvocationHandler {
+			private final Object target;
+			private final Object owner;
+
+			ChildHandler(Object target, Object owner) {
+				this.target = target;
+				this.owner = owner;
+			}
+
+			@Override
+			public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("equals")) return self == args[0];
+				if (name.equals("hashCode")) return System.identityHashCode(self);
+				if (name.equals("toString")) return target.toString();
+				if (name.equals("isWrapperFor")) return ((Class<?>) args[0]).isInstance(self);
+				if (name.equals("unwrap")) return unwrap(self, args);
+				if (args == null && name.equals("getConnection")) return proxy;
+				if (args == null && name.equals("getStatement"))
+					return owner instanceof Statement ? owner : null;
+
+				Object ret = invokeTarget(target, method, args);
+				if (name.equals("close") && target instanceof Statement) untrack((Statement) target);
+				return wrap(method.getReturnType(), ret, self);
+			}
+		}
+	}
+}
@@ -1,31 +1,54 @@
 package cn.kivensoft.sql;
 
+import java.io.Closeable;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.sql.SQLTransientConnectionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.sql.ConnectionEvent;
 import javax.sql.ConnectionEventListener;
 import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
 import javax.sql.PooledConnection;
 
 import cn.kivensoft.function.Supplier;
 import cn.kivensoft.util.MyLogger;
 
-/** 轻量级连接池类
+/** 轻量级连接池类，可以限制连接总数，连接全部被占用时按先来后到的顺序等待，
+ * 超过等待时间抛出SQLTransientConnectionException，避免突发流量时无限创建数据库连接，
+ * 空闲连接保存在无锁容器中，线程优先借出自己上次使用的连接，
+ * 刚归还不久的连接借出时不做有效性检查，设置定时线程池时由后台定时检查空闲连接，
+ * 关闭超过最长存活时间或空闲时间的连接并预先创建补充的连接，获取连接时基本不需要检查，
+ * mysql及hsqldb使用驱动自带的ConnectionPoolDataSource，其它驱动通过DriverManager创建连接，
+ * 也可以直接使用任意的DataSource，由连接池的代理连接拦截close实现归还，
+ * 可选的泄漏检测记录借出连接的调用位置，超过设定时间未归还的连接输出警告日志
  * @author kiven lee
- * @version 1.2
+ * @version 1.6
  * @date 2017-10.22
  */
-public final class MiniConnPoolMgr implements Supplier<Connection>, Runnable {
-	// 定时回收多余连接的间隔时间
-	private final int DELAY_SECONDS = 120;
+public final class MiniConnPoolMgr implements Supplier<Connection>, Runnable, Closeable {
+	// 定时检查、回收及补充连接的间隔时间
+	private final int DELAY_SECONDS = 30;
+	// 定时检查连接泄漏的间隔时间
+	private static final int LEAK_CHECK_SECONDS = 5;
+	// 连接总数已达上限时重新尝试借出的间隔时间
+	private static final long SLOT_RETRY_NANOS = 100000;
+	// 获取连接的缺省等待时间
+	private static final long DEFAULT_ACQUIRE_TIMEOUT = 30000;
+	// 免检查时间的缺省值
+	private static final long DEFAULT_VALIDATION_WINDOW = 500;
+	// 连接最长存活时间及最长空闲时间的缺省值
+	private static final long DEFAULT_MAX_LIFETIME = 1800000;
+	private static final long DEFAULT_IDLE_TIMEOUT = 600000;
 	
-	private final Queue<PooledConnection> recycledConnections = new LinkedBlockingDeque<PooledConnection>();
-	private final PoolConnectionEventListener poolConnectionEventListener = new PoolConnectionEventListener();
+	private final ConnectionBag bag = new ConnectionBag();
 	
 	private final String driverClassName;
 	private final String url;
@@ -33,18 +56,92 @@ public final class MiniConnPoolMgr implements Supplier<Connection>, Runnable {
 	private final String password;
 	private final int minIdle;
 	private final int maxIdle;
+	// 连接总数上限，包括空闲及使用中的连接，0表示不限制
+	private final int maxTotal;
+	// 获取连接的最长等待时间，单位毫秒
+	private volatile long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+	// 归还或后台检查后在该时间内借出的连接不做有效性检查，单位纳秒
+	private volatile long validationWindowNanos =
+			TimeUnit.MILLISECONDS.toNanos(DEFAULT_VALIDATION_WINDOW);
+	// 连接创建后的最长存活时间，单位纳秒，0表示不限制
+	private volatile long maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_LIFETIME);
+	// 超过minIdle部分的连接的最长空闲时间，单位纳秒，0表示不限制
+	private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT);
+	// 借出超过该时间未归还的连接认为可能泄漏，单位纳秒，0表示不检测
+	private volatile long leakThresholdNanos;
+	private volatile PoolMetricsTracker metricsTracker;
 	private final ScheduledExecutorService schedule;
 	private final ConnectionPoolDataSource dataSource;
+	// 使用中连接的许可，公平模式保证等待的线程按顺序获取，maxTotal为0时为null
+	private final Semaphore permits;
+	private final AtomicInteger totalConnections = new AtomicInteger();
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	// 获取连接的等待统计
+	private final AtomicLong acquireCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	// 当前可能泄漏的连接数及累计检测到的次数
+	private final AtomicInteger leakedConnections = new AtomicInteger();
+	private final AtomicLong leakCount = new AtomicLong();
 	
-	private boolean isDisposed = false;
+	// 后台线程及等待许可的线程都会读取，需要volatile
+	private volatile boolean isDisposed = false;
+	// 定时维护及泄漏检测的任务，dispose时取消
+	private ScheduledFuture<?> maintainTask;
+	private ScheduledFuture<?> leakCheckTask;
 	// 部分低版本的jdbc驱动不支持isValid函数，需判断
 	private boolean skipValid = false;
 
 	public MiniConnPoolMgr(String driverClassName, String url,
 			String username, String password, int minIdle, int maxIdle,
 			ScheduledExecutorService scheduleExecutorService) throws Exception {
+		this(driverClassName, url, username, password, minIdle, maxIdle, 0,
+				scheduleExecutorService);
+	}
+
+	/** 创建连接池，mysql及hsqldb之外的驱动通过DriverManager创建连接
+	 * @param driverClassName jdbc驱动类名
+	 * @param url 数据库地址
+	 * @param username 用户名
+	 * @param password 密码
+	 * @param minIdle 最小空闲连接数
+	 * @param maxIdle 最大空闲连接数
+	 * @param maxTotal 连接总数上限，包括空闲及使用中的连接，0表示不限制
+	 * @param scheduleExecutorService 定时检查、回收及补充连接的线程池，为null时不回收，
+	 *     不为null时后台检查的连接在两个检查周期内借出不再检查
+	 * @throws Exception
+	 */
+	public MiniConnPoolMgr(String driverClassName, String url,
+			String username, String password, int minIdle, int maxIdle, int maxTotal,
+			ScheduledExecutorService scheduleExecutorService) throws Exception {
+		this(driverClassName, url, username, password, null, minIdle, maxIdle, maxTotal,
+				scheduleExecutorService);
+	}
+
+	/** 创建使用DataSource获取物理连接的连接池，例如H2、PostgreSQL等驱动提供的DataSource
+	 * @param dataSource 创建物理连接的数据源
+	 * @param minIdle 最小空闲连接数
+	 * @param maxIdle 最大空闲连接数
+	 * @param maxTotal 连接总数上限，包括空闲及使用中的连接，0表示不限制
+	 * @param scheduleExecutorService 定时检查、回收及补充连接的线程池，为null时不回收
+	 * @throws Exception
+	 */
+	public MiniConnPoolMgr(DataSource dataSource, int minIdle, int maxIdle, int maxTotal,
+			ScheduledExecutorService scheduleExecutorService) throws Exception {
+		this(dataSource.getClass().getName(), null, null, null, dataSource, minIdle, maxIdle,
+				maxTotal, scheduleExecutorService);
+	}
+
+	private MiniConnPoolMgr(String driverClassName, String url, String username,
+			String password, DataSource ds, int minIdle, int maxIdle, int maxTotal,
+			ScheduledExecutorService scheduleExecutorService) throws Exception {
 		if (minIdle > maxIdle)
 			throw new Exception("Error create MiniConnPoolMgr, minIdle greater than maxIdle.");
+		if (maxTotal < 0 || maxTotal > 0 && maxIdle > maxTotal)
+			throw new Exception("Error create MiniConnPoolMgr, maxIdle greater than maxTotal.");
 		
 		this.driverClassName = driverClassName;
 		this.url = url;
@@ -52,17 +149,27 @@ public final class MiniConnPoolMgr implements Supplier<Connection>, Runnable {
 		this.password = password;
 		this.minIdle = minIdle;
 		this.maxIdle = maxIdle;
+		this.maxTotal = maxTotal;
+		this.permits = maxTotal > 0 ? new Semaphore(maxTotal, true) : null;
 		this.schedule = scheduleExecutorService;
+		if (schedule != null)
+			validationWindowNanos = TimeUnit.SECONDS.toNanos(DELAY_SECONDS * 2);
 		
 		//创建ConnectionPoolDataSource
-		dataSource = createDataSource();
+		dataSource = ds != null ? new JdbcPoolDataSource(ds) : createDataSource();
 		run();
-		if (schedule != null)
-			schedule.scheduleWithFixedDelay(this, DELAY_SECONDS,
+		if (schedule != null) {
+			maintainTask = schedule.scheduleWithFixedDelay(this, DELAY_SECONDS,
 					DELAY_SECONDS, TimeUnit.SECONDS);
+			leakCheckTask = schedule.scheduleWithFixedDelay(new Runnable() {
+				@Override public void run() {
+					checkLeaks();
+				}
+			}, LEAK_CHECK_SECONDS, LEAK_CHECK_SECONDS, TimeUnit.SECONDS);
+		}
 		
-		MyLogger.info("初始化数据库连接池，url={}, live={}, minIdle={}, maxIdle={}",
-				url, recycledConnections.size(), minIdle, maxIdle);
+		MyLogger.info("初始化数据库连接池，url={}, live={}, minIdle={}, maxIdle={}, maxTotal={}",
+				url != null ? url : driverClassName, bag.getIdleCount(), minIdle, maxIdle, maxTotal);
 	}
 	
 	private ConnectionPoolDataSource createDataSource() throws Exception {
@@ -76,7 +183,11 @@ public final class MiniConnPoolMgr implements Supplier<Connection>, Runnable {
 					Class.forName("org.hsqldb.HsqlPoolDataSource").newInstance();
 			skipValid = true;
 		}
-		else throw new Exception("Unsupport driver " + driverClassName);
+		else {
+			// 其它驱动加载后通过DriverManager创建连接
+			Class.forName(driverClassName);
+			return new JdbcPoolDataSource(url, username, password);
+		}
 
 		Class<?> _cls = ds.getClass();
 		_cls.getMethod("setURL", String.class).invoke(ds, url);
@@ -91,43 +202,250 @@ public final class MiniConnPoolMgr implements Supplier<Connection>, Runnable {
 	
 	public Connection getConnection(boolean autoCommit) throws SQLException {
 		Connection conn = getConnection2();
-		conn.setAutoCommit(autoCommit);
+		try {
+			conn.setAutoCommit(autoCommit);
+		}
+		catch (SQLException e) {
+			conn.close();
+			throw e;
+		}
 		return conn;
 	}
 	
 	public void dispose() {
 		isDisposed = true;
-		PooledConnection pconn;
-		while((pconn = recycledConnections.poll()) != null)
-			disposeConnection(pconn);
+		if (maintainTask != null) maintainTask.cancel(false);
+		if (leakCheckTask != null) leakCheckTask.cancel(false);
+		closeIdleConnections();
+	}
+
+	// 关闭所有空闲连接，使用中的连接在归还时关闭，正在被后台检查的连接由检查线程关闭
+	private void closeIdleConnections() {
+		for (ConnectionBag.Entry entry : bag.values())
+			if (bag.reserve(entry)) closeEntry(entry);
+	}
+
+	/** 关闭连接池，与dispose相同，用于SimpleHttpServer.shutdown按顺序关闭资源 */
+	@Override
+	public void close() {
+		dispose();
 	}
 
 	private Connection getConnection2() throws SQLException {
 		if (isDisposed)
 			throw new IllegalStateException("Connection pool has been disposed.");
 
-		PooledConnection pconn;
-		while ((pconn = recycledConnections.poll()) != null) {
+		long start = System.nanoTime();
+		acquirePermit();
+		try {
+			// 等待许可期间连接池可能已关闭
+			if (isDisposed)
+				throw new IllegalStateException("Connection pool has been disposed.");
+			PoolEntry entry;
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeout);
+			while (true) {
+				while ((entry = (PoolEntry) bag.borrow()) != null) {
+					if (!isExpired(entry, System.nanoTime()) && isAlive(entry)) break;
+					else closeEntry(entry);
+				}
+				if (entry != null) break;
+				if (reserveTotal()) {
+					entry = createEntry(ConnectionBag.IN_USE);
+					break;
+				}
+				// 已持有许可但连接总数已达上限，说明有空闲连接正在被后台检查或正在关闭，稍后重试
+				if (System.nanoTime() - deadline >= 0) {
+					timeoutCount.incrementAndGet();
+					throw new SQLTransientConnectionException("Connection pool exhausted, timeout after "
+							+ acquireTimeout + "ms, active=" + activeConnections.get() + ", total="
+							+ totalConnections.get() + ", maxTotal=" + maxTotal + ".");
+				}
+				LockSupport.parkNanos(SLOT_RETRY_NANOS);
+			}
+
+			Connection conn;
 			try {
-				if (skipValid || pconn.getConnection().isValid(3)) break;
-				else disposeConnection(pconn);
+				conn = entry.pconn.getConnection();
 			}
-			catch(SQLException e) { }
+			catch (SQLException e) {
+				closeEntry(entry);
+				throw e;
+			}
+			activeConnections.incrementAndGet();
+			long now = System.nanoTime();
+			entry.borrowStack = leakThresholdNanos > 0 ? new Exception("Connection borrowed by thread "
+					+ Thread.currentThread().getName()) : null;
+			entry.borrowTime = now;
+			PoolMetricsTracker tracker = metricsTracker;
+			if (tracker != null) tracker.recordAcquire(now - start);
+			return conn;
+		}
+		catch (SQLException e) {
+			releasePermit();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			releasePermit();
+			throw e;
 		}
-		if (pconn == null) pconn = dataSource.getPooledConnection();
+	}
+
+	/** 获取使用连接的许可，连接全部被占用时按顺序等待，超时抛出异常 */
+	private void acquirePermit() throws SQLException {
+		acquireCount.incrementAndGet();
+		if (permits == null) return;
 
-		pconn.addConnectionEventListener(poolConnectionEventListener);
-		return pconn.getConnection();
+		long start = System.nanoTime();
+		boolean ok;
+		try {
+			// 无参数的tryAcquire即使在公平模式下也会插队，带超时的版本才按排队顺序获取
+			if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) return;
+			waitCount.incrementAndGet();
+			ok = permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLTransientConnectionException("Interrupted while waiting for connection.");
+		}
+		long nanos = System.nanoTime() - start;
+		waitNanos.addAndGet(nanos);
+		long max = maxWaitNanos.get();
+		while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos))
+			max = maxWaitNanos.get();
+		if (!ok) {
+			timeoutCount.incrementAndGet();
+			throw new SQLTransientConnectionException("Connection pool exhausted, timeout after "
+					+ acquireTimeout + "ms, active=" + activeConnections.get() + ", total="
+					+ totalConnections.get() + ", maxTotal=" + maxTotal + ", waiting="
+					+ permits.getQueueLength() + ".");
+		}
 	}
 
-	private void recycleConnection(PooledConnection pconn) {
-		if (isDisposed || !recycledConnections.offer(pconn))
-			disposeConnection(pconn);
+	private void releasePermit() {
+		if (permits != null) permits.release();
 	}
 
-	private void disposeConnection(PooledConnection pconn) {
+	// 借出的连接是否可用，刚归还或刚检查过的连接不做检查
+	private boolean isAlive(ConnectionBag.Entry entry) {
+		if (skipValid || System.nanoTime() - entry.lastValidated < validationWindowNanos)
+			return true;
+		return validate(entry);
+	}
+
+	private boolean validate(ConnectionBag.Entry entry) {
 		try {
-			pconn.close();
+			return entry.pconn.getConnection().isValid(3);
+		}
+		catch (SQLException e) {
+			return false;
+		}
+	}
+
+	// 连接是否超过最长存活时间
+	private boolean isExpired(ConnectionBag.Entry entry, long now) {
+		long lifetime = maxLifetimeNanos;
+		return lifetime > 0 && now - entry.createTime > lifetime;
+	}
+
+	// 连接总数加1，为创建连接预留名额，已达到maxTotal时返回false
+	private boolean reserveTotal() {
+		while (true) {
+			int n = totalConnections.get();
+			if (maxTotal > 0 && n >= maxTotal) return false;
+			if (totalConnections.compareAndSet(n, n + 1)) return true;
+		}
+	}
+
+	// 创建连接并加入容器，调用前需要用reserveTotal预留名额，事件监听只在创建时注册一次
+	private PoolEntry createEntry(int state) throws SQLException {
+		PooledConnection pconn;
+		try {
+			pconn = dataSource.getPooledConnection();
+		}
+		catch (SQLException e) {
+			totalConnections.decrementAndGet();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			totalConnections.decrementAndGet();
+			throw e;
+		}
+		createdCount.incrementAndGet();
+		PoolEntry entry = new PoolEntry(pconn, state);
+		pconn.addConnectionEventListener(entry);
+		bag.add(entry);
+		return entry;
+	}
+
+	// 使用中的连接关闭或出错后归还许可
+	private void returnConnection(PoolEntry entry, boolean error) {
+		// 忽略非借出状态的连接的重复事件
+		if (entry.getState() != ConnectionBag.IN_USE) return;
+		activeConnections.decrementAndGet();
+		long usage = System.nanoTime() - entry.borrowTime;
+		// 借出时间清零后再归还，避免泄漏检测把刚借出还未记录时间的连接当成泄漏
+		entry.borrowTime = 0;
+		PoolMetricsTracker tracker = metricsTracker;
+		if (tracker != null) tracker.recordUsage(usage);
+		try {
+			// 空闲连接超过上限时直接关闭，连接总数的上限由创建连接时的reserveTotal保证
+			if (error || isDisposed || isExpired(entry, System.nanoTime())
+					|| bag.getIdleCount() >= maxIdle)
+				closeEntry(entry);
+			else bag.requite(entry);
+		}
+		finally {
+			releasePermit();
+			clearLeak(entry, usage);
+		}
+	}
+
+	/** 检查借出超过泄漏检测时间未归还的连接，输出借出位置的警告日志，每个连接只输出一次，
+	 * 设置定时线程池时自动定期检查
+	 * @return 本次检测到的可能泄漏的连接数
+	 */
+	public int checkLeaks() {
+		long threshold = leakThresholdNanos;
+		if (threshold <= 0) return 0;
+		int count = 0;
+		for (ConnectionBag.Entry e : bag.values()) {
+			PoolEntry entry = (PoolEntry) e;
+			long held;
+			synchronized (entry) {
+				long borrowTime = entry.borrowTime;
+				held = System.nanoTime() - borrowTime;
+				if (entry.leakReported || borrowTime == 0 || held <= threshold
+						|| entry.getState() != ConnectionBag.IN_USE)
+					continue;
+				entry.leakReported = true;
+			}
+			leakedConnections.incrementAndGet();
+			leakCount.incrementAndGet();
+			++count;
+			Exception stack = entry.borrowStack;
+			long millis = TimeUnit.NANOSECONDS.toMillis(held);
+			if (stack != null) MyLogger.warn(stack, "数据库连接可能泄漏，已借出{}ms未归还", millis);
+			else MyLogger.warn("数据库连接可能泄漏，已借出{}ms未归还", millis);
+		}
+		return count;
+	}
+
+	// 被判定为泄漏的连接最终归还时清除标记
+	private void clearLeak(PoolEntry entry, long usage) {
+		synchronized (entry) {
+			if (!entry.leakReported) return;
+			entry.leakReported = false;
+		}
+		leakedConnections.decrementAndGet();
+		MyLogger.info("可能泄漏的数据库连接已归还，使用时间{}ms", TimeUnit.NANOSECONDS.toMillis(usage));
+	}
+
+	// 从容器中移除借出中或已标记为待移除的连接并关闭
+	private void closeEntry(ConnectionBag.Entry entry) {
+		if (!bag.remove(entry)) return;
+		totalConnections.decrementAndGet();
+		try {
+			entry.pconn.close();
 		}
 		catch (SQLException e) {
 			MyLogger.warn(e, "Error while closing database connection: {}", e.getMessage());
@@ -136,25 +454,205 @@ public final class MiniConnPoolMgr implements Supplier<Connection>, Runnable {
 
 	@Override
 	public void run() {
-		// 如果线程池中可用连接小于最小空闲连接数，则创建
+		if (schedule != null) evictIdleConnections();
+		// 如果线程池中可用连接小于最小空闲连接数，则创建，连接总数不超过上限
 		try {
-			while(recycledConnections.size() < minIdle) {
-				recycledConnections.offer(dataSource.getPooledConnection());
+			while(!isDisposed && bag.getIdleCount() < minIdle && reserveTotal()) {
+				createEntry(ConnectionBag.NOT_IN_USE);
 			}
 		}
 		catch(SQLException e) {
 			MyLogger.error(e, "Error when create database connection.");
 		}
+		// 创建期间连接池被关闭时，关闭刚创建的连接
+		if (isDisposed) {
+			closeIdleConnections();
+			return;
+		}
 		// 如果线程池中可用连接数大于最大空闲连接数，则释放
-		while(recycledConnections.size() > maxIdle) {
-			PooledConnection pconn = recycledConnections.poll();
-			if (pconn != null) disposeConnection(pconn);
-			else break;
+		for (ConnectionBag.Entry entry : bag.values()) {
+			if (bag.getIdleCount() <= maxIdle) break;
+			if (bag.reserve(entry)) closeEntry(entry);
 		}
 	}
 	
+	/** 检查空闲连接，关闭超过最长存活时间、超过空闲时间或已失效的连接，
+	 * 检查期间连接标记为待移除，不会被借出
+	 */
+	private void evictIdleConnections() {
+		long idleTimeout = idleTimeoutNanos, window = validationWindowNanos;
+		int evicted = 0;
+		for (ConnectionBag.Entry entry : bag.values()) {
+			if (isDisposed || !bag.reserve(entry)) continue;
+			long now = System.nanoTime();
+			boolean close;
+			if (isExpired(entry, now)) close = true;
+			else if (idleTimeout > 0 && now - entry.lastAccess > idleTimeout
+					&& bag.getIdleCount() >= minIdle) close = true;
+			// 最近归还的连接不需要检查
+			else if (skipValid || now - entry.lastValidated < window / 2) close = false;
+			else if (validate(entry)) {
+				entry.lastValidated = System.nanoTime();
+				close = false;
+			}
+			else close = true;
+
+			if (close) {
+				closeEntry(entry);
+				++evicted;
+			}
+			else {
+				bag.unreserve(entry);
+				// 检查期间连接池被关闭，dispose跳过了该连接，在这里关闭
+				if (isDisposed && bag.reserve(entry)) closeEntry(entry);
+			}
+		}
+		if (evicted > 0)
+			MyLogger.debug("数据库连接池回收{}个连接，total={}, idle={}",
+					evicted, totalConnections.get(), bag.getIdleCount());
+	}
+
 	public int getRecycledConnections() {
-		return recycledConnections.size();
+		return bag.getIdleCount();
+	}
+
+	/** 连接总数，包括空闲及使用中的连接 */
+	public int getTotalConnections() {
+		return totalConnections.get();
+	}
+
+	/** 使用中的连接数 */
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	/** 正在等待连接的线程数 */
+	public int getWaitingThreads() {
+		return permits == null ? 0 : permits.getQueueLength();
+	}
+
+	public int getMaxTotal() {
+		return maxTotal;
+	}
+
+	public long getAcquireTimeout() {
+		return acquireTimeout;
+	}
+
+	/** 设置连接全部被占用时获取连接的最长等待时间，超时抛出SQLTransientConnectionException
+	 * @param acquireTimeout 等待时间，单位毫秒，0表示不等待立即失败
+	 */
+	public void setAcquireTimeout(long acquireTimeout) {
+		if (acquireTimeout < 0)
+			throw new IllegalArgumentException("acquireTimeout must not be negative.");
+		this.acquireTimeout = acquireTimeout;
+	}
+
+	public long getValidationWindow() {
+		return TimeUnit.NANOSECONDS.toMillis(validationWindowNanos);
+	}
+
+	/** 设置免检查时间，归还或后台检查后在该时间内借出的连接认为仍然可用，不调用isValid检查
+	 * @param millis 免检查时间，单位毫秒，0表示每次借出都检查
+	 */
+	public void setValidationWindow(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("validationWindow must not be negative.");
+		this.validationWindowNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	public long getMaxLifetime() {
+		return TimeUnit.NANOSECONDS.toMillis(maxLifetimeNanos);
+	}
+
+	/** 设置连接的最长存活时间，超过的空闲连接被后台关闭，使用中的连接在归还时关闭
+	 * @param millis 最长存活时间，单位毫秒，0表示不限制
+	 */
+	public void setMaxLifetime(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("maxLifetime must not be negative.");
+		this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	public long getIdleTimeout() {
+		return TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos);
+	}
+
+	/** 设置连接的最长空闲时间，超过的连接被后台关闭，空闲连接数不少于minIdle
+	 * @param millis 最长空闲时间，单位毫秒，0表示不限制
+	 */
+	public void setIdleTimeout(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("idleTimeout must not be negative.");
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	public long getLeakDetectionThreshold() {
+		return TimeUnit.NANOSECONDS.toMillis(leakThresholdNanos);
+	}
+
+	/** 设置泄漏检测时间，开启后借出连接时记录调用位置，超过该时间未归还的连接输出警告日志
+	 * @param millis 泄漏检测时间，单位毫秒，0表示不检测
+	 */
+	public void setLeakDetectionThreshold(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("leakDetectionThreshold must not be negative.");
+		this.leakThresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	public PoolMetricsTracker getMetricsTracker() {
+		return metricsTracker;
+	}
+
+	/** 设置指标记录，为null时不记录获取连接耗时及使用时间 */
+	public void setMetricsTracker(PoolMetricsTracker metricsTracker) {
+		this.metricsTracker = metricsTracker;
+	}
+
+	/** 累计创建的物理连接数 */
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/** 当前借出超过泄漏检测时间未归还的连接数 */
+	public int getLeakedConnections() {
+		return leakedConnections.get();
+	}
+
+	/** 累计检测到的可能泄漏的连接数 */
+	public long getLeakCount() {
+		return leakCount.get();
+	}
+
+	/** 获取连接的总次数 */
+	public long getAcquireCount() {
+		return acquireCount.get();
+	}
+
+	/** 需要等待才获取到连接(或超时)的次数 */
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	/** 等待超时的次数 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/** 等待的总时间，单位毫秒 */
+	public long getTotalWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+	}
+
+	/** 单次等待的最长时间，单位毫秒 */
+	public long getMaxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+	}
+
+	/** 等待的平均时间，单位毫秒，只计算需要等待的获取 */
+	public double getAverageWaitMillis() {
+		long n = waitCount.get();
+		return n == 0 ? 0 : waitNanos.get() / 1000000.0 / n;
 	}
 
 	public String getDriverClassName() {
@@ -173,19 +671,29 @@ public final class MiniConnPoolMgr implements Supplier<Connection>, Runnable {
 		return password;
 	}
 
-	private class PoolConnectionEventListener implements ConnectionEventListener {
+	// 容器中的连接，同时监听自身的关闭及出错事件
+	private class PoolEntry extends ConnectionBag.Entry implements ConnectionEventListener {
+		private static final long serialVersionUID = 1L;
+
+		// 借出时间，System.nanoTime的值，未借出时为0
+		volatile long borrowTime;
+		// 开启泄漏检测时记录的借出位置
+		volatile Exception borrowStack;
+		// 是否已被判定为泄漏，在同步块中读写
+		boolean leakReported;
+
+		PoolEntry(PooledConnection pconn, int state) {
+			super(pconn, state);
+		}
+
 		@Override
 		public void connectionClosed(ConnectionEvent event) {
-			PooledConnection pconn = (PooledConnection) event.getSource();
-			pconn.removeConnectionEventListener(this);
-			recycleConnection(pconn);
+			returnConnection(this, false);
 		}
 
 		@Override
 		public void connectionErrorOccurred(ConnectionEvent event) {
-			PooledConnection pconn = (PooledConnection) event.getSource();
-			pconn.removeConnectionEventListener(this);
-			disposeConnection(pconn);
+			returnConnection(this, true);
 		}
 	}
 
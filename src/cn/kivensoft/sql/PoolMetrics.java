@@ -0,0 +1,144 @@
+package cn.kivensoft.sql;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import cn.kivensoft.metrics.LatencyHistogram;
+import cn.kivensoft.metrics.MetricsSource;
+import cn.kivensoft.metrics.PrometheusWriter;
+
+/** 连接池指标的缺省实现，记录获取连接耗时及使用时间的直方图，
+ * 并以prometheus文本格式输出连接池的各项指标，多个连接池需加入同一个对象，
+ * 保证每个指标的说明只输出一次且样本连续
+ * 使用方法:
+ *     PoolMetrics metrics = new PoolMetrics();
+ *     metrics.add("main", pool);
+ *     metrics.add("report", reportPool);
+ *     server.addMetricsSource(metrics);
+ * @author kiven lee
+ * @version 1.1
+ */
+public final class PoolMetrics implements MetricsSource {
+	private final List<Entry> entries = new CopyOnWriteArrayList<Entry>();
+
+	public PoolMetrics() {
+	}
+
+	/** 创建连接池指标并加入一个连接池
+	 * @param name 连接池名称，输出时作为pool标签的值
+	 * @param pool 连接池
+	 */
+	public PoolMetrics(String name, MiniConnPoolMgr pool) {
+		add(name, pool);
+	}
+
+	/** 加入连接池并设置为连接池的指标记录
+	 * @param name 连接池名称，输出时作为pool标签的值
+	 * @param pool 连接池
+	 * @return 该连接池的指标
+	 */
+	public Entry add(String name, MiniConnPoolMgr pool) {
+		Entry e = new Entry(name, pool);
+		pool.setMetricsTracker(e);
+		entries.add(e);
+		return e;
+	}
+
+	/** 移除连接池，不再输出该连接池的指标 */
+	public void remove(MiniConnPoolMgr pool) {
+		for (Entry e : entries) {
+			if (e.pool == pool) {
+				entries.remove(e);
+				pool.setMetricsTracker(null);
+			}
+		}
+	}
+
+	/** 按名称获取连接池的指标，不存在时返回null */
+	public Entry get(String name) {
+		for (Entry e : entries)
+			if (e.name.equals(name)) return e;
+		return null;
+	}
+
+	@Override
+	public void writeMetrics(PrometheusWriter w) {
+		// 同一指标的说明只写一次，各连接池的样本连续输出
+		Entry[] es = entries.toArray(new Entry[0]);
+		if (es.length == 0) return;
+		w.type("db_pool_active_connections", "gauge", "Connections currently borrowed.");
+		for (Entry e : es)
+			w.sample("db_pool_active_connections", e.pool.getActiveConnections(), "pool", e.name);
+		w.type("db_pool_idle_connections", "gauge", "Idle connections in pool.");
+		for (Entry e : es)
+			w.sample("db_pool_idle_connections", e.pool.getRecycledConnections(), "pool", e.name);
+		w.type("db_pool_pending_threads", "gauge", "Threads waiting for a connection.");
+		for (Entry e : es)
+			w.sample("db_pool_pending_threads", e.pool.getWaitingThreads(), "pool", e.name);
+		w.type("db_pool_total_connections", "gauge", "Open physical connections.");
+		for (Entry e : es)
+			w.sample("db_pool_total_connections", e.pool.getTotalConnections(), "pool", e.name);
+		w.type("db_pool_created_connections_total", "counter", "Physical connections created.");
+		for (Entry e : es)
+			w.sample("db_pool_created_connections_total", e.pool.getCreatedCount(), "pool", e.name);
+		w.type("db_pool_acquire_timeouts_total", "counter", "Acquires that timed out.");
+		for (Entry e : es)
+			w.sample("db_pool_acquire_timeouts_total", e.pool.getTimeoutCount(), "pool", e.name);
+		w.type("db_pool_leaked_connections", "gauge", "Connections held past the leak threshold.");
+		for (Entry e : es)
+			w.sample("db_pool_leaked_connections", e.pool.getLeakedConnections(), "pool", e.name);
+		w.type("db_pool_acquire_duration_seconds", "histogram", "Time to acquire a connection.");
+		for (Entry e : es)
+			w.histogram("db_pool_acquire_duration_seconds", e.acquire, "pool", e.name);
+		w.type("db_pool_usage_duration_seconds", "histogram", "Time a connection is borrowed.");
+		for (Entry e : es)
+			w.histogram("db_pool_usage_duration_seconds", e.usage, "pool", e.name);
+	}
+
+	@Override
+	public String toString() {
+		return "PoolMetrics" + entries;
+	}
+
+	/** 单个连接池的指标记录 */
+	public static final class Entry implements PoolMetricsTracker {
+		private final String name;
+		private final MiniConnPoolMgr pool;
+		private final LatencyHistogram acquire = new LatencyHistogram();
+		private final LatencyHistogram usage = new LatencyHistogram();
+
+		Entry(String name, MiniConnPoolMgr pool) {
+			this.name = name;
+			this.pool = pool;
+		}
+
+		@Override
+		public void recordAcquire(long nanos) {
+			acquire.record(nanos);
+		}
+
+		@Override
+		public void recordUsage(long nanos) {
+			usage.record(nanos);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/** 获取连接耗时的直方图 */
+		public LatencyHistogram getAcquireLatency() {
+			return acquire;
+		}
+
+		/** 连接使用时间的直方图 */
+		public LatencyHistogram getUsageDuration() {
+			return usage;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
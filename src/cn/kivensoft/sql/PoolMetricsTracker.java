@@ -0,0 +1,18 @@
+package cn.kivensoft.sql;
+
+/** 连接池的指标记录接口，可以对接不同的监控系统，在借出及归还连接的线程中调用，
+ * 实现类需要线程安全且尽量快速返回，连接数等状态通过MiniConnPoolMgr的get函数获取
+ * @author kiven lee
+ * @version 1.0
+ */
+public interface PoolMetricsTracker {
+	/** 记录获取连接的耗时，包括等待许可、检查及创建连接的时间
+	 * @param nanos 耗时，单位纳秒
+	 */
+	void recordAcquire(long nanos);
+
+	/** 记录连接从借出到归还的使用时间
+	 * @param nanos 使用时间，单位纳秒
+	 */
+	void recordUsage(long nanos);
+}
@@ -0,0 +1,48 @@
+package cn.kivensoft.trace;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import cn.kivensoft.util.MyLogger;
+
+/** 把跟踪记录以每行一个json的格式追加到文件
+ * @author kiven lee
+ * @version 1.0
+ */
+public final class FileTraceSink implements TraceSink {
+	private final Writer writer;
+
+	/** 打开文件，文件已存在时追加
+	 * @param fileName 文件名
+	 * @throws IOException
+	 */
+	public FileTraceSink(String fileName) throws IOException {
+		writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(fileName, true), "UTF-8"));
+	}
+
+	@Override
+	public void export(Trace trace) {
+		String line = trace.toString();
+		synchronized (writer) {
+			try {
+				writer.write(line);
+				writer.write('\n');
+				writer.flush();
+			} catch (IOException e) {
+				MyLogger.error(e, "write trace {} has error.", trace.getTraceId());
+			}
+		}
+	}
+
+	public void close() {
+		synchronized (writer) {
+			try {
+				writer.close();
+			} catch (IOException e) { }
+		}
+	}
+}
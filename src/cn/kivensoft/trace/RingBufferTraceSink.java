@@ -0,0 +1,56 @@
+package cn.kivensoft.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** 保存最近跟踪记录的环形缓冲区，容量固定，写满后覆盖最旧的记录，写入无锁
+ * @author kiven lee
+ * @version 1.0
+ */
+public final class RingBufferTraceSink implements TraceSink {
+	private final AtomicReferenceArray<Trace> buffer;
+	private final AtomicLong position = new AtomicLong();
+
+	public RingBufferTraceSink(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive.");
+		buffer = new AtomicReferenceArray<Trace>(capacity);
+	}
+
+	@Override
+	public void export(Trace trace) {
+		buffer.set((int) (position.getAndIncrement() % buffer.length()), trace);
+	}
+
+	/** 获取缓冲区中的记录，最新的在前 */
+	public List<Trace> getTraces() {
+		long end = position.get();
+		int cap = buffer.length();
+		List<Trace> ret = new ArrayList<Trace>((int) Math.min(end, cap));
+		for (long i = end - 1; i >= 0 && i >= end - cap; --i) {
+			Trace t = buffer.get((int) (i % cap));
+			if (t != null) ret.add(t);
+		}
+		return ret;
+	}
+
+	/** 按跟踪id查找记录，找不到时返回null */
+	public Trace find(String traceId) {
+		for (int i = 0, n = buffer.length(); i < n; ++i) {
+			Trace t = buffer.get(i);
+			if (t != null && t.getTraceId().equals(traceId)) return t;
+		}
+		return null;
+	}
+
+	public void clear() {
+		for (int i = 0, n = buffer.length(); i < n; ++i)
+			buffer.set(i, null);
+	}
+
+	public int getCapacity() {
+		return buffer.length();
+	}
+}
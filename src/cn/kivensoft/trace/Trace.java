@@ -0,0 +1,156 @@
+package cn.kivensoft.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+
+/** 一次被采样请求的跟踪记录，包含请求本身及其中的各个阶段(span)，
+ * 阶段可以嵌套，异步结果可能在其它线程中记录阶段，所以修改操作需要同步
+ * @author kiven lee
+ * @version 1.0
+ */
+public final class Trace {
+	// 单个跟踪记录最多保存的阶段数，超过的只计数
+	private static final int MAX_SPANS = 256;
+
+	private final String traceId;
+	private final String name;
+	private final String detail;
+	private final long startTime;
+	private final long startNanos;
+	private long endNanos;
+	private final List<Span> spans = new ArrayList<Span>();
+	// 当前未结束的最内层阶段，作为新阶段的上级
+	private Span current;
+	private int dropped;
+
+	Trace(String traceId, String name, String detail) {
+		this.traceId = traceId;
+		this.name = name;
+		this.detail = detail;
+		this.startTime = System.currentTimeMillis();
+		this.startNanos = System.nanoTime();
+	}
+
+	synchronized Span start(String name, String detail) {
+		if (endNanos != 0) return null;
+		if (spans.size() >= MAX_SPANS) {
+			++dropped;
+			return null;
+		}
+		Span span = new Span(this, name, detail, current == null ? -1 : current.index,
+				spans.size(), current, System.nanoTime());
+		spans.add(span);
+		current = span;
+		return span;
+	}
+
+	synchronized void end(Span span) {
+		if (span.endNanos != 0) return;
+		span.endNanos = System.nanoTime();
+		if (current == span) current = span.outer;
+	}
+
+	synchronized boolean finish() {
+		if (endNanos != 0) return false;
+		endNanos = System.nanoTime();
+		return true;
+	}
+
+	public String getTraceId() {
+		return traceId;
+	}
+
+	/** 名称，http请求时为请求方法 */
+	public String getName() {
+		return name;
+	}
+
+	/** 说明，http请求时为请求路径 */
+	public String getDetail() {
+		return detail;
+	}
+
+	public Date getStartTime() {
+		return new Date(startTime);
+	}
+
+	/** 总耗时，单位微秒，未结束时返回截止当前的耗时 */
+	public synchronized long getDurationMicros() {
+		return ((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos) / 1000;
+	}
+
+	public synchronized List<Span> getSpans() {
+		return Collections.unmodifiableList(new ArrayList<Span>(spans));
+	}
+
+	/** 超过最大数量而丢弃的阶段数 */
+	public synchronized int getDropped() {
+		return dropped;
+	}
+
+	/** 生成单行json格式的文本 */
+	@Override
+	public String toString() {
+		return JSON.toJSONString(this, SerializerFeature.WriteDateUseDateFormat,
+				SerializerFeature.DisableCircularReferenceDetect);
+	}
+
+	/** 跟踪记录中的一个阶段 */
+	public static final class Span {
+		private final Trace trace;
+		private final String name;
+		private final String detail;
+		private final int parent;
+		private final int index;
+		private final Span outer;
+		private final long startNanos;
+		private long endNanos;
+
+		Span(Trace trace, String name, String detail, int parent, int index,
+				Span outer, long startNanos) {
+			this.trace = trace;
+			this.name = name;
+			this.detail = detail;
+			this.parent = parent;
+			this.index = index;
+			this.outer = outer;
+			this.startNanos = startNanos;
+		}
+
+		/** 结束该阶段 */
+		public void end() {
+			trace.end(this);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/** 说明，例如sql语句 */
+		public String getDetail() {
+			return detail;
+		}
+
+		/** 上级阶段的序号，-1表示直接属于请求 */
+		public int getParent() {
+			return parent;
+		}
+
+		/** 相对请求开始的时间，单位微秒 */
+		public long getStartMicros() {
+			return (startNanos - trace.startNanos) / 1000;
+		}
+
+		/** 耗时，单位微秒，未结束时返回-1 */
+		public long getDurationMicros() {
+			synchronized (trace) {
+				return endNanos == 0 ? -1 : (endNanos - startNanos) / 1000;
+			}
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package cn.kivensoft.trace;
+
+/** 跟踪记录的输出接口，在结束请求的线程中调用，实现类需要线程安全且尽量快速返回
+ * @author kiven lee
+ * @version 1.0
+ */
+public interface TraceSink {
+	void export(Trace trace);
+}
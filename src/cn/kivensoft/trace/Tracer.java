@@ -0,0 +1,168 @@
+package cn.kivensoft.trace;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** 请求级的轻量跟踪，采样的请求记录各个阶段的耗时并输出到TraceSink，
+ * 没有设置输出或请求未被采样时，各个记录函数只读取一次线程变量，不分配内存
+ * 使用方法:
+ *     Tracer.setSink(new RingBufferTraceSink(100));
+ *     Tracer.setSampleRate(0.01);
+ *     Trace.Span span = Tracer.start("sql", sql);
+ *     try { ... } finally { Tracer.end(span); }
+ * @author kiven lee
+ * @version 1.0
+ */
+public final class Tracer {
+	/** 传入或返回跟踪id的请求头 */
+	public static final String TRACE_ID_HEADER = "X-Trace-Id";
+	/** W3C Trace Context格式的请求头，带采样标志时强制采样 */
+	public static final String TRACEPARENT_HEADER = "traceparent";
+	private static final int MAX_TRACE_ID_LENGTH = 64;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<Trace> current = new ThreadLocal<Trace>();
+	private static final AtomicLong sequence = new AtomicLong();
+	private static final Random random = new Random();
+	private static volatile TraceSink sink;
+	private static volatile double sampleRate;
+
+	private Tracer() {}
+
+	public static TraceSink getSink() {
+		return sink;
+	}
+
+	/** 设置跟踪记录的输出，为null时禁用跟踪 */
+	public static void setSink(TraceSink sink) {
+		Tracer.sink = sink;
+	}
+
+	public static double getSampleRate() {
+		return sampleRate;
+	}
+
+	/** 设置采样率，按请求顺序均匀采样，请求头traceparent带采样标志的请求总是采样
+	 * @param sampleRate 采样率，取值0-1，0表示只采样带采样标志的请求
+	 */
+	public static void setSampleRate(double sampleRate) {
+		if (sampleRate < 0 || sampleRate > 1)
+			throw new IllegalArgumentException("sampleRate must between 0 and 1.");
+		Tracer.sampleRate = sampleRate;
+	}
+
+	/** 是否启用跟踪 */
+	public static boolean isEnabled() {
+		return sink != null;
+	}
+
+	/** 根据采样规则开始一个请求的跟踪，返回的跟踪记录需要调用attach绑定到处理线程
+	 * @param name 名称
+	 * @param detail 说明
+	 * @param traceparent 请求头traceparent的值，可以为null
+	 * @param traceId 请求头X-Trace-Id的值，可以为null
+	 * @return 跟踪记录，未启用或未被采样时返回null
+	 */
+	public static Trace begin(String name, String detail, String traceparent, String traceId) {
+		if (sink == null) return null;
+		String id = null;
+		boolean sampled = false;
+		// traceparent格式: 版本(2)-跟踪id(32)-上级id(16)-标志(2)，跟踪id无效时忽略整个请求头
+		if (traceparent != null && traceparent.length() >= 55 && traceparent.charAt(2) == '-'
+				&& traceparent.charAt(35) == '-' && traceparent.charAt(52) == '-') {
+			String pid = traceparent.substring(3, 35);
+			if (isTraceparentId(pid) && isValidId(pid)) {
+				int flags = Character.digit(traceparent.charAt(54), 16);
+				sampled = flags >= 0 && (flags & 1) != 0;
+				id = pid;
+			}
+		}
+		if (!sampled && !sample()) return null;
+		if (id == null && isValidId(traceId)) id = traceId;
+		return new Trace(id != null ? id : newTraceId(), name, detail);
+	}
+
+	/** 把跟踪记录绑定到当前线程，之后在该线程中开始的阶段都记录到该跟踪 */
+	public static void attach(Trace trace) {
+		if (trace != null) current.set(trace);
+	}
+
+	/** 解除当前线程绑定的跟踪记录 */
+	public static void detach() {
+		current.remove();
+	}
+
+	/** 当前线程绑定的跟踪记录，没有时返回null */
+	public static Trace current() {
+		return current.get();
+	}
+
+	/** 在当前线程绑定的跟踪中开始一个阶段
+	 * @param name 阶段名称
+	 * @param detail 说明，例如sql语句，可以为null
+	 * @return 阶段对象，当前线程没有跟踪时返回null
+	 */
+	public static Trace.Span start(String name, String detail) {
+		if (sink == null) return null;
+		Trace trace = current.get();
+		return trace == null ? null : trace.start(name, detail);
+	}
+
+	/** 结束阶段，span为null时忽略 */
+	public static void end(Trace.Span span) {
+		if (span != null) span.end();
+	}
+
+	/** 结束跟踪并输出，重复调用只输出一次，trace为null时忽略 */
+	public static void finish(Trace trace) {
+		if (trace == null || !trace.finish()) return;
+		TraceSink s = sink;
+		if (s == null) return;
+		try {
+			s.export(trace);
+		} catch (Exception e) {
+			// 跟踪输出不能影响请求处理
+		}
+	}
+
+	// 按请求序号均匀采样，序号乘以采样率的整数部分变化时采样
+	private static boolean sample() {
+		double rate = sampleRate;
+		if (rate <= 0) return false;
+		if (rate >= 1) return true;
+		long seq = sequence.getAndIncrement();
+		return (long) ((seq + 1) * rate) != (long) (seq * rate);
+	}
+
+	// traceparent的跟踪id为32位小写十六进制，不能全为0
+	private static boolean isTraceparentId(String id) {
+		boolean zero = true;
+		for (int i = 0, n = id.length(); i < n; ++i) {
+			char c = id.charAt(i);
+			if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) return false;
+			if (c != '0') zero = false;
+		}
+		return !zero;
+	}
+
+	private static boolean isValidId(String id) {
+		if (id == null || id.isEmpty() || id.length() > MAX_TRACE_ID_LENGTH) return false;
+		for (int i = 0, n = id.length(); i < n; ++i) {
+			char c = id.charAt(i);
+			if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+					|| c == '-' || c == '_' || c == '.'))
+				return false;
+		}
+		return true;
+	}
+
+	// 生成32位16进制的跟踪id，与W3C Trace Context兼容
+	private static String newTraceId() {
+		char[] chars = new char[32];
+		long v = random.nextLong();
+		for (int i = 0; i < 16; ++i, v >>>= 4) chars[i] = HEX[(int) (v & 0xF)];
+		v = random.nextLong();
+		for (int i = 16; i < 32; ++i, v >>>= 4) chars[i] = HEX[(int) (v & 0xF)];
+		return new String(chars);
+	}
+}
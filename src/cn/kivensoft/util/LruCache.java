@@ -90,6 +90,12 @@ public class LruCache<K, V> implements Serializable {
 		addLast(co);
 		co = data.put(key, co);
 		if (co != null) removeItem(co);
+		// 超过容量时淘汰最久未访问的条目
+		while (head != null && removeEldestEntry(data.size())) {
+			CacheObject eldest = head;
+			data.remove(eldest.key);
+			removeItem(eldest);
+		}
 		if (cacheLock != null) cacheLock.unlock();
 		return co == null || isExpired(co.lastAccess) ? null : co.value;
 	}